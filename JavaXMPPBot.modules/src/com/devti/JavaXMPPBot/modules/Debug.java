@@ -24,15 +24,25 @@ package com.devti.JavaXMPPBot.modules;
 
 import com.devti.JavaXMPPBot.Bot;
 import com.devti.JavaXMPPBot.Command;
+import com.devti.JavaXMPPBot.CommandRouter;
+import com.devti.JavaXMPPBot.DatabaseModule;
 import com.devti.JavaXMPPBot.Message;
+import com.devti.JavaXMPPBot.MessageDispatcher;
 import com.devti.JavaXMPPBot.Module;
+import java.sql.SQLException;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TreeMap;
+import java.util.regex.Pattern;
 
 public class Debug extends Module {
 
+    private static final Pattern queryPattern = Pattern.compile(
+            "\\s*(SELECT|UPDATE|DELETE)\\s.*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
     public Debug(Bot bot, Map<String, String> cfg) {
         super(bot, cfg);
         try {
@@ -41,6 +51,9 @@ public class Debug extends Module {
             bot.registerCommand(new Command("system", "show system properties", true, this));
             bot.registerCommand(new Command("modules", "list loaded modules", true, this));
             bot.registerCommand(new Command("config", "get configuration for the specified module", true, this));
+            bot.registerCommand(new Command("dispatcher", "show statistics of incoming message dispatcher", true, this));
+            bot.registerCommand(new Command("command_stats", "show invocation statistics of commands", true, this));
+            bot.registerCommand(new Command("query_plans", "show plans of DB queries of the specified module", true, this));
         } catch (Exception e) {
             log.warn("Can't register a command", e);
         }
@@ -87,6 +100,43 @@ public class Debug extends Module {
                 }
             }
             bot.sendReply(msg, message);
+        } else if (msg.command.equals("dispatcher")) {
+            MessageDispatcher dispatcher = bot.getDispatcher();
+            String message = String.format(
+                    "Threads: %d active of %d\nQueue: %d of %d (max %d)\nOverload policy: %s\nQueued: %,d\nProcessed: %,d\nRejected: %,d\nDropped: %,d\nProcessed by receiver: %,d",
+                    dispatcher.getActiveThreads(),
+                    dispatcher.getMaxThreads(),
+                    dispatcher.getQueueDepth(),
+                    dispatcher.getQueueSize(),
+                    dispatcher.getMaxQueueDepth(),
+                    dispatcher.getOverloadPolicy(),
+                    dispatcher.getSubmittedCount(),
+                    dispatcher.getCompletedCount(),
+                    dispatcher.getRejectedCount(),
+                    dispatcher.getDroppedCount(),
+                    dispatcher.getCallerRunsCount());
+            bot.sendReply(msg, message);
+        } else if (msg.command.equals("command_stats")) {
+            String message = "Command: invocations, average time, latency histogram (<";
+            for (long bound : CommandRouter.LATENCY_BOUNDS) {
+                message += bound + "ms, ";
+            }
+            message += "longer)";
+            Map<String, CommandRouter.Statistics> statistics =
+                    bot.getCommandRouter().getStatistics();
+            for (Map.Entry<String, CommandRouter.Statistics> entry : statistics.entrySet()) {
+                CommandRouter.Statistics s = entry.getValue();
+                if (s.getCount() == 0) {
+                    continue;
+                }
+                String histogram = "";
+                for (long count : s.getHistogram()) {
+                    histogram += (histogram.isEmpty() ? "" : "/") + count;
+                }
+                message += String.format("\n%s: %,d, %,d ms, %s", entry.getKey(),
+                        s.getCount(), s.getTotalTime() / s.getCount(), histogram);
+            }
+            bot.sendReply(msg, message);
         } else if (msg.command.equals("config")) {
             if (msg.commandArgs == null || msg.commandArgs.isEmpty()) {
                 bot.sendReply(msg, "Usage: " + bot.getCommandPrefix() +
@@ -107,6 +157,39 @@ public class Debug extends Module {
                 }
                 bot.sendReply(msg, message);
             }
+        } else if (msg.command.equals("query_plans")) {
+            if (msg.commandArgs == null || msg.commandArgs.isEmpty()) {
+                bot.sendReply(msg, "Usage: " + bot.getCommandPrefix() +
+                        "query_plans <Module>");
+                return;
+            }
+            String name = msg.commandArgs.trim();
+            Module module = bot.getModule(name);
+            if (module == null) {
+                bot.sendReply(msg, "Error: module '" + name + "' isn't loaded.");
+            } else if (!(module instanceof DatabaseModule)) {
+                bot.sendReply(msg, "Error: module '" + name + "' doesn't use a DB.");
+            } else {
+                String message = "Query plans for module '" + name + "':";
+                TreeMap<String, String> cfg = new TreeMap<>(module.getConfig());
+                for (Map.Entry<String, String> property : cfg.entrySet()) {
+                    String sql = property.getValue();
+                    if (sql == null || !queryPattern.matcher(sql).matches()) {
+                        continue;
+                    }
+                    message += "\n" + property.getKey() + ": ";
+                    try {
+                        List<String> plan = ((DatabaseModule) module)
+                                .getConnectionPool().explain(sql);
+                        for (int i = 0; i < plan.size(); i++) {
+                            message += (i > 0 ? "; " : "") + plan.get(i);
+                        }
+                    } catch (SQLException e) {
+                        message += "error: " + e.getLocalizedMessage();
+                    }
+                }
+                bot.sendReply(msg, message);
+            }
         }
     }
 }
@@ -22,30 +22,35 @@
  */
 package com.devti.JavaXMPPBot.modules;
 
+import com.devti.JavaXMPPBot.BatchWriter;
 import com.devti.JavaXMPPBot.Bot;
 import com.devti.JavaXMPPBot.Command;
+import com.devti.JavaXMPPBot.ConnectionPool;
+import com.devti.JavaXMPPBot.DatabaseModule;
+import com.devti.JavaXMPPBot.Link;
 import com.devti.JavaXMPPBot.Logger;
 import com.devti.JavaXMPPBot.Message;
+import com.devti.JavaXMPPBot.MessageFilter;
 import com.devti.JavaXMPPBot.Module;
+import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.URL;
 import java.net.URLConnection;
-import java.security.DigestInputStream;
 import java.security.KeyManagementException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -53,16 +58,20 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
-public class Downloader extends Module {
+public class Downloader extends Module implements DatabaseModule {
 
     static private final Map<String, String> defaultConfig = new HashMap<>();
 
@@ -71,6 +80,9 @@ public class Downloader extends Module {
         defaultConfig.put("db-url", "jdbc:sqlite:" + System.getProperty("user.home") + File.separator + "JavaXMPPBot" + File.separator + "downloader.db");
         defaultConfig.put("db-username", null);
         defaultConfig.put("db-password", null);
+        defaultConfig.put("db-pool-size", "4");
+        defaultConfig.put("write-batch-size", "50");
+        defaultConfig.put("write-delay", "1000");
         defaultConfig.put("url-pattern", "http://[:a-z0-9%$&_./~()?=+-]+");
         defaultConfig.put("tag-pattern", "\\[\\s*([^\\]]+)\\s*\\]");
         defaultConfig.put("store-to", System.getProperty("user.home") + File.separator + "JavaXMPPBot" + File.separator + "Downloader");
@@ -84,6 +96,7 @@ public class Downloader extends Module {
         defaultConfig.put("exclude-specified-tags", "no");
         defaultConfig.put("signature-base-size", "10");
         defaultConfig.put("signature-min-match-percent", "99");
+        defaultConfig.put("dhash-max-distance", "-1");
         defaultConfig.put("disable-ssl-cert-validation", "yes");
         defaultConfig.put("select-signature", "SELECT `md5`, `signature` FROM `javaxmppbot_downloader_signatures`");
         defaultConfig.put("create", "CREATE TABLE IF NOT EXISTS `javaxmppbot_downloader` (`md5` TEXT(32), `time` INT(10), `from` TEXT(255), `url` TEXT(255), `file` TEXT(255))");
@@ -96,34 +109,61 @@ public class Downloader extends Module {
         defaultConfig.put("delete", "DELETE FROM `javaxmppbot_downloader` WHERE `md5`=?");
         defaultConfig.put("delete-tag", "DELETE FROM `javaxmppbot_downloader_tags` WHERE `md5`=?");
         defaultConfig.put("delete-signature", "DELETE FROM `javaxmppbot_downloader_signatures` WHERE `md5`=?");
+        defaultConfig.put("create-dhashes", "CREATE TABLE IF NOT EXISTS `javaxmppbot_downloader_dhashes` (`md5` TEXT(32), `dhash` INTEGER)");
+        defaultConfig.put("select-dhash", "SELECT `md5`, `dhash` FROM `javaxmppbot_downloader_dhashes`");
+        defaultConfig.put("insert-dhash", "INSERT INTO `javaxmppbot_downloader_dhashes` (`md5`, `dhash`) VALUES (?, ?)");
+        defaultConfig.put("delete-dhash", "DELETE FROM `javaxmppbot_downloader_dhashes` WHERE `md5`=?");
+        defaultConfig.put("create-urls", "CREATE TABLE IF NOT EXISTS `javaxmppbot_downloader_urls` (`url` TEXT(255), `md5` TEXT(32), `etag` TEXT(255), `modified` TEXT(64), `length` INT(10), `prefix` TEXT(32))");
+        defaultConfig.put("create-indexes", "CREATE INDEX IF NOT EXISTS `javaxmppbot_downloader_md5` ON `javaxmppbot_downloader` (`md5`);CREATE INDEX IF NOT EXISTS `javaxmppbot_downloader_file` ON `javaxmppbot_downloader` (`file`);CREATE INDEX IF NOT EXISTS `javaxmppbot_downloader_tags_md5` ON `javaxmppbot_downloader_tags` (`md5`);CREATE INDEX IF NOT EXISTS `javaxmppbot_downloader_signatures_md5` ON `javaxmppbot_downloader_signatures` (`md5`);CREATE INDEX IF NOT EXISTS `javaxmppbot_downloader_dhashes_md5` ON `javaxmppbot_downloader_dhashes` (`md5`);CREATE INDEX IF NOT EXISTS `javaxmppbot_downloader_urls_url` ON `javaxmppbot_downloader_urls` (`url`);CREATE INDEX IF NOT EXISTS `javaxmppbot_downloader_urls_md5` ON `javaxmppbot_downloader_urls` (`md5`);CREATE INDEX IF NOT EXISTS `javaxmppbot_downloader_urls_prefix` ON `javaxmppbot_downloader_urls` (`length`, `prefix`)");
+        defaultConfig.put("select-url", "SELECT `md5`, `etag`, `modified` FROM `javaxmppbot_downloader_urls` WHERE `url` = ? LIMIT 1");
+        defaultConfig.put("select-url-by-prefix", "SELECT `md5` FROM `javaxmppbot_downloader_urls` WHERE `length` = ? AND `prefix` = ? LIMIT 1");
+        defaultConfig.put("insert-url", "INSERT INTO `javaxmppbot_downloader_urls` (`url`, `md5`, `etag`, `modified`, `length`, `prefix`) VALUES (?, ?, ?, ?, ?, ?)");
+        defaultConfig.put("delete-url", "DELETE FROM `javaxmppbot_downloader_urls` WHERE `url`=?");
+        defaultConfig.put("delete-urls", "DELETE FROM `javaxmppbot_downloader_urls` WHERE `md5`=?");
+        defaultConfig.put("prefix-hash-size", "65536");
         defaultConfig.put("select-by-file", "SELECT `md5` FROM `javaxmppbot_downloader` WHERE `file` = ? LIMIT 1");
         defaultConfig.put("proxy.type", "NONE");
         defaultConfig.put("size-limit", "0");
+        defaultConfig.put("threads", "4");
+        defaultConfig.put("threads-per-host", "2");
+        defaultConfig.put("queue-size", "100");
+        defaultConfig.put("connect-timeout", "10000");
+        defaultConfig.put("read-timeout", "30000");
+        defaultConfig.put("max-redirects", "5");
         defaultConfig.put("proxy.host", null);
         defaultConfig.put("proxy.port", null);
     }
 
-    private final Pattern urlPattern;
+    private Pattern urlPattern;
     private final Pattern tagPattern;
     private final byte signatureBaseSize;
     private final int signatureMaxDistance;
+    private final int dHashMaxDistance;
+    private final SignatureIndex signatureIndex;
+    private final DHashIndex dHashIndex;
+    private volatile boolean signatureIndexLoaded;
 
-    private final String dbUrl;
-    private final String dbDriver;
-    private final String dbUsername;
-    private final String dbPassword;
-
-    private Connection connection;
-    private PreparedStatement psAddRecord;
-    private PreparedStatement psAddTag;
-    private PreparedStatement psSearchRecord;
-    private PreparedStatement psAddSignature;
-    private PreparedStatement psDeleteRecord;
-    private PreparedStatement psDeleteTag;
-    private PreparedStatement psDeleteSignature;
-    private PreparedStatement psGetMd5ByFilename;
+    private final ConnectionPool pool;
+    private final DownloaderDAO dao;
 
     private final HashMap<String, String> extensionsMap;
+    final HttpFetcher fetcher;
+    private final Proxy proxy;
+
+    // Images for scaling, they are reused by every downloading thread
+    private final ThreadLocal<BufferedImage> signatureImage = new ThreadLocal<BufferedImage>() {
+        @Override
+        protected BufferedImage initialValue() {
+            return new BufferedImage(signatureBaseSize, signatureBaseSize,
+                    BufferedImage.TYPE_INT_RGB);
+        }
+    };
+    private final ThreadLocal<BufferedImage> dHashImage = new ThreadLocal<BufferedImage>() {
+        @Override
+        protected BufferedImage initialValue() {
+            return new BufferedImage(9, 8, BufferedImage.TYPE_INT_RGB);
+        }
+    };
 
     protected final String storeTo;
     protected final String filenameFormat;
@@ -138,11 +178,10 @@ public class Downloader extends Module {
         super(bot, cfg, defaultConfig);
 
         // Get properties
-        dbDriver = config.get("db-driver");
-        dbUrl = config.get("db-url");
-        dbUsername = config.get("db-username");
-        dbPassword = config.get("db-password");
-        urlPattern = Pattern.compile(config.get("url-pattern"), Pattern.CASE_INSENSITIVE);
+        if (config.get("url-pattern") != null) {
+            urlPattern = Pattern.compile(config.get("url-pattern"),
+                    Pattern.CASE_INSENSITIVE);
+        }
         tagPattern = Pattern.compile(config.get("tag-pattern"), Pattern.CASE_INSENSITIVE);
         storeTo = config.get("store-to");
         filenameFormat = config.get("filename-format");
@@ -169,6 +208,9 @@ public class Downloader extends Module {
         byte minMatchPercent = new Byte(config.get("signature-min-match-percent"));
         int maxImageDistance = (int) Math.round(signatureBaseSize * signatureBaseSize * Math.sqrt(255 * 255 * 3));
         signatureMaxDistance = (int) Math.round(maxImageDistance - maxImageDistance * minMatchPercent / 100);
+        signatureIndex = new SignatureIndex(signatureBaseSize * signatureBaseSize * 3);
+        dHashMaxDistance = new Integer(config.get("dhash-max-distance"));
+        dHashIndex = new DHashIndex();
 
         // Disable SSL certificate validation
         if (config.get("disable-ssl-cert-validation").equalsIgnoreCase("yes")) {
@@ -201,16 +243,29 @@ public class Downloader extends Module {
             }
         }
 
+        Proxy p;
+        try {
+            p = HttpFetcher.createProxy(config);
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid proxy settings: %s", e.getLocalizedMessage());
+            p = Proxy.NO_PROXY;
+        }
+        proxy = p;
+        fetcher = HttpFetcher.acquire(bot, new Integer(config.get("threads")),
+                new Integer(config.get("threads-per-host")),
+                new Integer(config.get("queue-size")));
+
         // Create storage directorty if it doesn't exist
         File dir = new File(storeTo);
         dir.mkdirs();
 
-        // Initialize JDBC driver
-        try {
-            Class.forName(dbDriver).newInstance();
-        } catch (ClassNotFoundException | IllegalAccessException | InstantiationException e) {
-            log.warn("Can't initialize JDBC driver '%s': %s", dbDriver,
-                    e.getLocalizedMessage());
+        // Connect to DB
+        pool = acquireConnectionPool();
+        dao = new DownloaderDAO(pool, config, log);
+
+        // Load image signatures into memory
+        if (config.get("compare-as-images") != null) {
+            loadSignatures();
         }
 
         try {
@@ -218,76 +273,147 @@ public class Downloader extends Module {
             bot.registerCommand(new Command("delete_file",
                     "remove a file downloaded by Downloader module",
                     true, this));
+            bot.registerCommand(new Command("download_stats",
+                    "show statistics of the download queue of Downloader module",
+                    true, this));
         } catch (Exception e) {
             log.warn("Can't register a command", e);
         }
     }
 
-    public byte[] createImageSignature(File file) {
-        int[] pixel = new int[3];
-        byte[] signature = new byte[signatureBaseSize * signatureBaseSize * 3];
-        try {
-            BufferedImage original = ImageIO.read(file);
-            BufferedImage resized = new BufferedImage(signatureBaseSize,
-                    signatureBaseSize, BufferedImage.TYPE_INT_RGB);
-            Graphics2D g = resized.createGraphics();
-            g.drawImage(original, 0, 0, signatureBaseSize, signatureBaseSize, null);
-            int c = 0;
-            for (int i = 0; i < signatureBaseSize; i++) {
-                for (int j = 0; j < signatureBaseSize; j++) {
-                    pixel = resized.getData().getPixel(i, j, pixel);
-                    signature[c++] = (byte) pixel[0];
-                    signature[c++] = (byte) pixel[1];
-                    signature[c++] = (byte) pixel[2];
+    /**
+     * Decodes the image skipping pixels which aren't needed to scale it
+     * down to the specified size.
+     */
+    private static BufferedImage readImage(File file, int size) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                throw new IOException("can't open the file");
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int step = Math.min(reader.getWidth(0), reader.getHeight(0)) / size;
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (step > 1) {
+                    param.setSourceSubsampling(step, step, 0, 0);
                 }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
             }
-        } catch (IOException e) {
-            log.warn("Can't create signature for file '%s': %s",
-                    file.toString(), e.getLocalizedMessage());
         }
-        return signature;
     }
 
-    public final void addImageSignature(String md5sum, byte[] signature) {
-        synchronized (dbDriver) {
-            try {
-                psAddSignature.setString(1, md5sum);
-                psAddSignature.setBytes(2, signature);
-                psAddSignature.executeUpdate();
-            } catch (SQLException e) {
-                log.warn("An error has been occurred during adding the "
-                        + "signature of '%s' into the DB: %s",
-                        md5sum,
-                        e.getLocalizedMessage());
+    private static int[] scale(BufferedImage source, BufferedImage target,
+            boolean smooth) {
+        Graphics2D g = target.createGraphics();
+        try {
+            g.setBackground(Color.BLACK);
+            g.clearRect(0, 0, target.getWidth(), target.getHeight());
+            if (smooth) {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
             }
+            g.drawImage(source, 0, 0, target.getWidth(), target.getHeight(), null);
+        } finally {
+            g.dispose();
         }
+        return ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
     }
 
-    public String searchDupBySignature(byte[] signature) {
+    /**
+     * Creates signatures of the image.
+     *
+     * @param file image file
+     * @return signatures or <code>null</code> if the file can't be read as
+     * an image
+     */
+    public ImageSignature createImageSignature(File file) {
+        BufferedImage original;
         try {
-            connectToDB();
-            PreparedStatement getSignatures = connection.prepareStatement(config.get("select-signature"));
-            ResultSet rs = getSignatures.executeQuery();
-            while (rs.next()) {
-                byte[] signature2 = rs.getBytes(2);
-                int d = 0;
-                int c = 0;
-                for (int i = 0; i < signatureBaseSize; i++) {
-                    for (int j = 0; j < signatureBaseSize; j++) {
-                        int dr = (signature[c] & 0xff) - (signature2[c++] & 0xff);
-                        int dg = (signature[c] & 0xff) - (signature2[c++] & 0xff);
-                        int db = (signature[c] & 0xff) - (signature2[c++] & 0xff);
-                        d += Math.ceil(Math.sqrt(dr * dr + dg * dg + db * db));
-                    }
-                }
-                if (d <= signatureMaxDistance) {
-                    return rs.getString(1);
-                }
+            // Keep at least 8 source pixels per pixel of signatures
+            original = readImage(file, Math.max(signatureBaseSize, 9) * 8);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Can't create signature for file '%s': %s",
+                    file.toString(), e.getLocalizedMessage());
+            return null;
+        }
+
+        // Grid of RGB pixels, column by column
+        int[] pixels = scale(original, signatureImage.get(), false);
+        byte[] grid = new byte[signatureBaseSize * signatureBaseSize * 3];
+        int c = 0;
+        for (int x = 0; x < signatureBaseSize; x++) {
+            for (int y = 0; y < signatureBaseSize; y++) {
+                int pixel = pixels[y * signatureBaseSize + x];
+                grid[c++] = (byte) (pixel >> 16);
+                grid[c++] = (byte) (pixel >> 8);
+                grid[c++] = (byte) pixel;
+            }
+        }
+
+        // Difference hash: brightness gradients of a 9x8 thumbnail
+        pixels = scale(original, dHashImage.get(), true);
+        long dHash = 0;
+        for (int y = 0; y < 8; y++) {
+            int previous = luminance(pixels[y * 9]);
+            for (int x = 1; x < 9; x++) {
+                int current = luminance(pixels[y * 9 + x]);
+                dHash = (dHash << 1) | (previous > current ? 1 : 0);
+                previous = current;
             }
+        }
+        return new ImageSignature(grid, dHash);
+    }
+
+    private static int luminance(int pixel) {
+        return ((pixel >> 16) & 0xff) * 299 + ((pixel >> 8) & 0xff) * 587
+                + (pixel & 0xff) * 114;
+    }
+
+    public final void addImageSignature(String md5sum, ImageSignature signature) {
+        try {
+            dao.addSignature(md5sum, signature);
+            signatureIndex.add(md5sum, signature.grid);
+            dHashIndex.add(md5sum, signature.dHash);
         } catch (Exception e) {
-            log.warn("Can't load image signatures from the DB", e);
-        }    
-        return null;
+            log.warn("An error has been occurred during adding the "
+                    + "signature of '%s' into the DB: %s",
+                    md5sum,
+                    e.getLocalizedMessage());
+        }
+    }
+
+    private void loadSignatures() {
+        synchronized (signatureIndex) {
+            if (signatureIndexLoaded) {
+                return;
+            }
+            try {
+                dao.loadSignatures(signatureIndex, dHashIndex);
+                signatureIndexLoaded = true;
+                log.info("%d image signatures and %d hashes have been loaded",
+                        signatureIndex.size(), dHashIndex.size());
+            } catch (Exception e) {
+                log.warn("Can't load image signatures from the DB", e);
+            }
+        }
+    }
+
+    public String searchDupBySignature(ImageSignature signature) {
+        if (!signatureIndexLoaded) {
+            loadSignatures();
+        }
+        String md5sum = signatureIndex.search(signature.grid, signatureMaxDistance);
+        if (md5sum == null && dHashMaxDistance >= 0) {
+            md5sum = dHashIndex.search(signature.dHash, dHashMaxDistance);
+        }
+        return md5sum;
     }
 
     public String getExtension(String type) {
@@ -299,87 +425,74 @@ public class Downloader extends Module {
     }
 
     protected String[] searchDup(String md5sum) throws Exception {
-        synchronized (dbDriver) {
-            connectToDB();
-            psSearchRecord.setString(1, md5sum);
-            ResultSet rs = psSearchRecord.executeQuery();
-            if (rs.next()) {
-                return new String[]{rs.getString(4), rs.getString(3),
-                    rs.getString(1), rs.getString(2)};
-            }
-        }
-        return null;
+        return dao.searchDup(md5sum);
     }
 
     protected void addFile(String md5sum, String from, String url,
-            String file, ArrayList<String> tags) throws Exception {
-        synchronized (dbDriver) {
-            connectToDB();
-            psAddRecord.setString(1, md5sum);
-            psAddRecord.setString(2, from);
-            psAddRecord.setString(3, url);
-            psAddRecord.setString(4, file);
-            psAddRecord.executeUpdate();
-            for (int i = 0; i < tags.size(); i++) {
-                psAddTag.setString(1, md5sum);
-                psAddTag.setString(2, tags.get(i));
-                psAddTag.executeUpdate();
-            }
-        }
+            String file, List<String> tags) throws Exception {
+        dao.addFile(md5sum, from, url, file, tags);
+    }
+
+    /**
+     * Returns what is known about the URL from previous downloads.
+     *
+     * @param url the URL
+     * @return MD5 sum of the file, its ETag and Last-Modified or
+     * <code>null</code> if the URL hasn't been downloaded
+     */
+    protected String[] searchURL(String url) throws Exception {
+        return dao.searchURL(url);
+    }
+
+    /**
+     * Searches a previously downloaded file by its length and MD5 sum of its
+     * first prefix-hash-size bytes.
+     *
+     * @return MD5 sum of the file or <code>null</code> if it isn't found
+     */
+    protected String searchURLByPrefix(long length, String prefix) throws Exception {
+        return dao.searchURLByPrefix(length, prefix);
+    }
+
+    protected void addURL(String url, String md5sum, String etag,
+            String modified, long length, String prefix) throws Exception {
+        dao.addURL(url, md5sum, etag, modified, length, prefix);
+    }
+
+    /**
+     * Creates a request with proxy, timeouts and limits of this module.
+     *
+     * @param url the URL
+     * @return the request
+     * @throws MalformedURLException if the URL isn't an HTTP one
+     */
+    HttpFetcher.Request createRequest(String url) throws MalformedURLException {
+        return new HttpFetcher.Request(url).proxy(proxy)
+                .timeouts(new Integer(config.get("connect-timeout")),
+                        new Integer(config.get("read-timeout")))
+                .maxRedirects(new Integer(config.get("max-redirects")))
+                .maxBytes(new Long(config.get("size-limit")))
+                // A duplicate found by the prefix hash leaves the rest of the
+                // body unread, a kept-alive connection would still read it
+                .keepAlive(new Long(config.get("prefix-hash-size")) <= 0);
     }
 
     protected void deleteFile(String md5sum) throws Exception {
-        synchronized (dbDriver) {
-            connectToDB();
-            psDeleteRecord.setString(1, md5sum);
-            psDeleteRecord.executeUpdate();
-            psDeleteTag.setString(1, md5sum);
-            psDeleteTag.executeUpdate();
-            psDeleteSignature.setString(1, md5sum);
-            psDeleteSignature.executeUpdate();
-        }
+        dao.deleteFile(md5sum);
+        signatureIndex.remove(md5sum);
+        dHashIndex.remove(md5sum);
     }
 
-    private void connectToDB() throws Exception {
-        // Return if connection is opened already
-        try {
-            if (connection != null
-                    && !connection.isClosed()
-                    && (dbDriver.equalsIgnoreCase("org.sqlite.JDBC")
-                    || connection.isValid(5))) {
-                return;
-            }
-        } catch (SQLException e) {
-            log.warn("JDBC connection isn't ready or can't check it", e);
-        }
-        // Connect
-        connection = DriverManager.getConnection(dbUrl, dbUsername, dbPassword);
-        // Prepare JDBC statements and create table if it doesn't exist
-        PreparedStatement createTable = connection.prepareStatement(config.get("create"));
-        createTable.execute();
-        createTable = connection.prepareStatement(config.get("create-tags"));
-        createTable.execute();
-        createTable = connection.prepareStatement(config.get("create-signatures"));
-        createTable.execute();
-        psAddRecord = connection.prepareStatement(config.get("insert"));
-        psAddTag = connection.prepareStatement(config.get("insert-tag"));
-        psSearchRecord = connection.prepareStatement(config.get("select"));
-        psAddSignature = connection.prepareStatement(config.get("insert-signature"));
-        psDeleteRecord = connection.prepareStatement(config.get("delete"));
-        psDeleteTag = connection.prepareStatement(config.get("delete-tag"));
-        psDeleteSignature = connection.prepareStatement(config.get("delete-signature"));
-        psGetMd5ByFilename = connection.prepareStatement(config.get("select-by-file"));
+    @Override
+    public MessageFilter getMessageFilter() {
+        return super.getMessageFilter().withURL();
     }
 
     @Override
     public boolean processMessage(Message msg) {
         String message = msg.body;
         // Get tags
-        ArrayList<String> messageTags = new ArrayList<>();
-        Matcher matcher = tagPattern.matcher(message);
-        while (matcher.find()) {
-            messageTags.add(matcher.group(1));
-        }
+        List<String> messageTags = msg.find(tagPattern, 1);
 
         // Check tag exclusions
         if (excludeTags) {
@@ -405,12 +518,17 @@ public class Downloader extends Module {
         }
 
         // Get URLs
-        matcher = urlPattern.matcher(message);
-        while (matcher.find()) {
-            String url = matcher.group();
+        for (Link link : msg.getLinks()) {
+            if (urlPattern != null
+                    && !urlPattern.matcher(link.getText()).find()) {
+                continue;
+            }
+            String url = link.getURL();
             log.info("I have got a new URL " + url);
-            DownloaderThread dt = new DownloaderThread(bot, this, url, messageTags, msg);
-            dt.start();
+            DownloaderTask task = new DownloaderTask(bot, this, url, messageTags, msg);
+            if (fetcher.submit(this, url, task) == null) {
+                log.warn("Download queue is full, %s is skipped", url);
+            }
         }
         return super.processMessage(msg);
     }
@@ -421,18 +539,12 @@ public class Downloader extends Module {
         if (msg.command.equals("delete_file")) {
             String filename = msg.commandArgs.trim();
             try {
-                ResultSet rs;
-                synchronized (dbDriver) {
-                    connectToDB();
-                    psGetMd5ByFilename.setString(1, filename);
-                    rs = psGetMd5ByFilename.executeQuery();
-                }
-                if (!rs.next()) {
+                String md5 = dao.getMd5ByFilename(filename);
+                if (md5 == null) {
                     bot.sendReply(msg, "Error: file '" + filename
                             + "' isn't found.");
                     return;
                 }
-                String md5 = rs.getString(1);
                 deleteFile(md5);
                 File file = new File(storeTo + File.separator + filename);
                 if (file.delete()) {
@@ -445,16 +557,27 @@ public class Downloader extends Module {
                 log.warn("Can't perfrom delete_file command", e);
                 bot.sendReply(msg, "Error: can't perfrom delete_file command.");
             }
+            // Show statistics of the download queue
+        } else if (msg.command.equals("download_stats")) {
+            bot.sendReply(msg, fetcher.getStatistics());
         }
     }
 
+    // Tasks log with the level set by modules.Downloader.log-level
+    Logger.Level getLogLevel() {
+        return log.getLevel();
+    }
+
+    @Override
+    public ConnectionPool getConnectionPool() {
+        return pool;
+    }
+
     @Override
     public void onUnload() {
-        try {
-            connection.close();
-        } catch (SQLException e) {
-            log.warn("Can't close JDBC connection", e);
-        }
+        fetcher.release(this);
+        dao.close();
+        pool.release();
     }
 }
 
@@ -477,27 +600,34 @@ class HexCodec {
     }
 }
 
-class DownloaderThread extends Thread {
+class DownloaderTask implements Runnable {
+
+    private static final int HEAD_SIZE = 16;
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[65536];
+        }
+    };
 
     private final Bot bot;
     private final Logger logger;
     private final Downloader downloader;
     private final String url;
-    private final ArrayList<String> tags;
+    private final List<String> tags;
     private final Message message;
     private final ArrayList<String> acceptableTypes;
     private final ArrayList<String> compareAsImages;
 
-    public DownloaderThread(Bot bot, Downloader downloader, String url,
-            ArrayList<String> tags, Message message) {
+    public DownloaderTask(Bot bot, Downloader downloader, String url,
+            List<String> tags, Message message) {
         this.bot = bot;
-        this.logger = new Logger(bot.getLog(), "[Downloader.DownloaderThread] ");
+        this.logger = new Logger(bot.getLog(), "[Downloader.DownloaderTask] ");
+        logger.setLevel(downloader.getLogLevel());
         this.downloader = downloader;
         this.message = message;
         this.url = url;
         this.tags = tags;
-        this.setName(this.getClass().getName() + "(" + bot.getBotId()
-                + ")(" + url + ")");
 
         if (downloader.getConfigProperty("accept") == null) {
             acceptableTypes = new ArrayList<>();
@@ -518,52 +648,99 @@ class DownloaderThread extends Thread {
         return b[0] << 24 | (b[1] & 0xff) << 16 | (b[2] & 0xff) << 8 | (b[3] & 0xff);
     }
 
+    public String getURL() {
+        return url;
+    }
+
+    private void sendDupReply(String[] dup) {
+        String from = dup[3];
+        if (message.type == Message.Type.groupchat) {
+            if (from.startsWith(message.room + "/")) {
+                from = from.substring((message.room + "/").length());
+            }
+        }
+        bot.sendReply(message, String.format(downloader.dupReplyFormat,
+                url, dup[0], dup[1], dup[2], from));
+    }
+
+    private void rememberURL(String md5sum, String etag, String modified,
+            long length, String prefix) {
+        try {
+            downloader.addURL(url, md5sum, etag, modified, length, prefix);
+        } catch (Exception e) {
+            logger.warn("Can't save URL %s into the DB: %s",
+                    url, e.getLocalizedMessage());
+        }
+    }
+
     @Override
     public void run() {
-        URL u;
-        HttpURLConnection connection;
+        HttpFetcher.Request request;
         try {
-            u = new URL(url);
-        } catch (MalformedURLException e) {
-            logger.warn("Can't create URI object for '%s': %",
+            request = downloader.createRequest(url);
+        } catch (MalformedURLException | NumberFormatException e) {
+            logger.warn("Can't create a request for '%s': %s",
                     url, e.getLocalizedMessage());
             return;
         }
+
+        // Ask the server whether the file has changed since its last download
+        String[] known = null;
+        String[] knownDup = null;
         try {
-            InetSocketAddress proxySocketAddress;
-            if (downloader.getConfigProperty("proxy.host") != null) {
-                proxySocketAddress = new InetSocketAddress(
-                        downloader.getConfigProperty("proxy.host"),
-                        new Integer(downloader.getConfigProperty("proxy.port"))
-                );
-
-            } else {
-                proxySocketAddress = new InetSocketAddress(0);
-            }
-            Proxy proxy;
-            String proxyType = downloader.getConfigProperty("proxy.type");
-            if (proxyType.equalsIgnoreCase("NONE")
-                    || proxyType.equalsIgnoreCase("DIRECT")) {
-                proxy = Proxy.NO_PROXY;
-            } else {
-                proxy = new Proxy(Proxy.Type.valueOf(proxyType),
-                        proxySocketAddress
-                );
-            }
-            connection = (HttpURLConnection) u.openConnection(proxy);
-            connection.connect();
-        } catch (IOException | NumberFormatException e) {
+            known = downloader.searchURL(url);
+            if (known != null) {
+                knownDup = downloader.searchDup(known[0]);
+            }
+        } catch (Exception e) {
+            logger.warn("Can't check URL %s in the DB: %s",
+                    url, e.getLocalizedMessage());
+        }
+        if (knownDup != null) {
+            if (known[1] != null) {
+                request.header("If-None-Match", known[1]);
+            }
+            if (known[2] != null) {
+                request.header("If-Modified-Since", known[2]);
+            }
+        }
+        try (HttpFetcher.Response response = downloader.fetcher.open(request)) {
+            if (!download(response, known, knownDup)) {
+                response.abort();
+            }
+        } catch (IOException e) {
             logger.warn("Can't open connection to '%s': %s",
                     url, e.getLocalizedMessage());
-            return;
         }
-        String type = connection.getContentType();
+    }
+
+    // Returns true if the body has been read to the end
+    private boolean download(HttpFetcher.Response response, String[] known,
+            String[] knownDup) {
+        String etag = response.getHeader("ETag");
+        if (knownDup != null
+                && (response.getCode() == HttpURLConnection.HTTP_NOT_MODIFIED
+                || (etag != null && etag.equals(known[1])))) {
+            logger.info("File %s (%s) is a duplicate, it hasn't been changed.",
+                    url, known[0]);
+            sendDupReply(knownDup);
+            return response.getCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+        if (response.getCode() / 100 != 2) {
+            logger.warn("Can't download %s: server returned HTTP response code %d",
+                    url, response.getCode());
+            return false;
+        }
+        String modified = response.getHeader("Last-Modified");
+        long contentLength = response.getContentLength();
+
+        String type = response.getContentType();
         if (type == null) {
             logger.warn("Can't get content type for URL " + url);
-            connection.disconnect();
-            return;
+            return false;
         }
         boolean acceptable = false;
+        boolean complete = false;
         String[] types = type.split(";");
         for (String type1 : types) {
             if (!acceptableTypes.contains(type1)) {
@@ -572,45 +749,83 @@ class DownloaderThread extends Thread {
             logger.info("OK! Type of %s is %s.", url, type1);
             Integer sizeLimit = new Integer(
                     downloader.getConfigProperty("size-limit"));
-            if ((sizeLimit > 0) && connection.getContentLength() > sizeLimit) {
+            if ((sizeLimit > 0) && contentLength > sizeLimit) {
                 logger.info("Size of %s (%d) is bigger than allowed limit %d.",
-                        url, connection.getContentLength(), sizeLimit);
+                        url, contentLength, sizeLimit);
                 break;
             }
-            BufferedInputStream in = null;
-            BufferedOutputStream out = null;
+            InputStream in = null;
+            OutputStream out = null;
             File file = null;
             String md5sum = null;
+            String prefix = null;
             boolean hasBeenAdded = false;
             try {
                 MessageDigest messageDigest = MessageDigest.getInstance("MD5");
                 messageDigest.reset();
+                // Files longer than prefix-hash-size are also looked up by the
+                // hash of their beginning, before the rest is downloaded
+                MessageDigest prefixDigest = null;
+                long prefixSize = new Long(downloader.getConfigProperty("prefix-hash-size"));
+                if (prefixSize > 0 && contentLength > prefixSize) {
+                    prefixDigest = MessageDigest.getInstance("MD5");
+                }
+                String[] prefixDup = null;
                 file = File.createTempFile(
                         "javaxmppbot_Downloader_", ".tmp",
                         new File(downloader.storeTo));
                 String tmpFilename = file.getAbsolutePath();
-                in = new BufferedInputStream(
-                        new DigestInputStream(
-                                connection.getInputStream(),
-                                messageDigest));
-                out = new BufferedOutputStream(
-                        new FileOutputStream(file));
-                int i;
-                int count = 0;
-                while ((i = in.read()) != -1) {
-                    count++;
-                    if ((sizeLimit > 0) && (count > sizeLimit)) {
-                        throw new Exception("File is larger then limit ("
-                                + sizeLimit.toString() + " bytes)");
+                in = response.getBody();
+                out = new FileOutputStream(file);
+                byte[] buffer = BUFFER.get();
+                byte[] head = new byte[HEAD_SIZE];
+                int headLength = 0;
+                int n;
+                long count = 0;
+                while ((n = in.read(buffer)) != -1) {
+                    count += n;
+                    if (headLength < HEAD_SIZE) {
+                        int length = Math.min(n, HEAD_SIZE - headLength);
+                        System.arraycopy(buffer, 0, head, headLength, length);
+                        headLength += length;
+                    }
+                    messageDigest.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                    if (prefixDigest != null && prefix == null) {
+                        long start = count - n;
+                        prefixDigest.update(buffer, 0,
+                                (int) Math.min(n, prefixSize - start));
+                        if (count >= prefixSize) {
+                            prefix = HexCodec.bytesToHex(prefixDigest.digest());
+                            String prefixMd5 = downloader.searchURLByPrefix(
+                                    contentLength, prefix);
+                            if (prefixMd5 != null) {
+                                prefixDup = downloader.searchDup(prefixMd5);
+                            }
+                            if (prefixDup != null) {
+                                md5sum = prefixMd5;
+                                break;
+                            }
+                        }
                     }
-                    out.write(i);
                 }
+                complete = prefixDup == null;
                 out.close();
+                if (prefixDup != null) {
+                    logger.info("File %s (%s) is a duplicate, the rest of it "
+                            + "isn't downloaded.", url, md5sum);
+                    sendDupReply(prefixDup);
+                    rememberURL(md5sum, etag, modified, contentLength, prefix);
+                    acceptable = true;
+                    break;
+                }
 
-                // Check real file type
-                URLConnection fileConnection = file.toURI().toURL().openConnection();
-                String realFileType = fileConnection.getContentType();
-                fileConnection.getInputStream().close();
+                // Check real file type by its first bytes
+                String realFileType = URLConnection.guessContentTypeFromStream(
+                        new ByteArrayInputStream(head, 0, headLength));
+                if (realFileType == null) {
+                    realFileType = "content/unknown";
+                }
                 if (!acceptableTypes.contains(realFileType)) {
                     throw new Exception("Real file type (" + realFileType
                             + ") isn't acceptable");
@@ -628,38 +843,24 @@ class DownloaderThread extends Thread {
                     // This is duplicate, so send reply and delete temporary file
                     logger.info("File %s (%s) is a duplicate.",
                             url, md5sum);
-                    String from = dup[3];
-                    if (message.type == Message.Type.groupchat) {
-                        if (from.startsWith(message.room + "/")) {
-                            from = from.substring((message.room + "/").length());
-                        }
-
-                    }
-                    bot.sendReply(message,
-                            String.format(downloader.dupReplyFormat,
-                                    url, dup[0], dup[1], dup[2], from));
+                    sendDupReply(dup);
+                    rememberURL(md5sum, etag, modified, count, prefix);
                 } else {
                     // Try to compare with another images
                     boolean isntDuplicate = true;
-                    byte[] signature;
+                    ImageSignature signature = null;
                     if (compareAsImages.contains(realFileType)) {
                         signature = downloader.createImageSignature(file);
+                    }
+                    if (signature != null) {
                         String sigDup = downloader.searchDupBySignature(signature);
                         if (sigDup != null) {
                             // This is duplicate, so send reply
                             dup = downloader.searchDup(sigDup);
                             logger.info("File %s (%s) is a modified duplicate of %s.",
                                     url, md5sum, sigDup);
-                            String from = dup[3];
-                            if (message.type == Message.Type.groupchat) {
-                                if (from.startsWith(message.room + "/")) {
-                                    from = from.substring((message.room + "/").length());
-                                }
-
-                            }
-                            bot.sendReply(message, String.format(
-                                    downloader.dupReplyFormat,
-                                    url, dup[0], dup[1], dup[2], from));
+                            sendDupReply(dup);
+                            rememberURL(sigDup, etag, modified, count, prefix);
                             isntDuplicate = false;
                         } else {
                             downloader.addImageSignature(md5sum, signature);
@@ -690,6 +891,7 @@ class DownloaderThread extends Thread {
                                     + tmpFilename + "' to '" + newFilepath + "'");
                         }
                         file = null;
+                        rememberURL(md5sum, etag, modified, count, prefix);
                     }
                 }
             } catch (Exception e) {
@@ -705,7 +907,7 @@ class DownloaderThread extends Thread {
                 }
             } finally {
                 try {
-                    if (in != null) {
+                    if (in != null && complete) {
                         in.close();
                     }
                     if (out != null) {
@@ -725,6 +927,502 @@ class DownloaderThread extends Thread {
         if (!acceptable) {
             logger.info("Type of %s isn''t acceptable (%s).", url, type);
         }
-        connection.disconnect();
+        return complete;
+    }
+}
+
+/**
+ * Access to tables of downloaded files.
+ */
+class DownloaderDAO {
+
+    private final ConnectionPool pool;
+    private final Map<String, String> config;
+    private final BatchWriter writer;
+
+    public DownloaderDAO(ConnectionPool pool, Map<String, String> config,
+            Logger log) {
+        this.pool = pool;
+        this.config = config;
+        pool.migrate(config.get("create"), config.get("create-tags"),
+                config.get("create-signatures"), config.get("create-dhashes"),
+                config.get("create-urls"));
+        if (config.get("create-indexes") != null) {
+            pool.migrateOptional(config.get("create-indexes").split(";"));
+        }
+        writer = new BatchWriter(log, pool,
+                new Integer(config.get("write-batch-size")),
+                new Long(config.get("write-delay")));
+    }
+
+    /**
+     * Writes queued records.
+     */
+    public void close() {
+        writer.close();
+    }
+
+    /**
+     * @return file name, URL, time and author of the file or
+     * <code>null</code> if it isn't found
+     */
+    public String[] searchDup(String md5sum) throws SQLException {
+        String[] pending = (String[]) writer.getPending("file:" + md5sum);
+        if (pending != null) {
+            return pending;
+        }
+        try (ConnectionPool.Session db = pool.getConnection()) {
+            PreparedStatement select = db.prepare(config.get("select"));
+            select.setString(1, md5sum);
+            try (ResultSet rs = select.executeQuery()) {
+                if (rs.next()) {
+                    return new String[]{rs.getString(4), rs.getString(3),
+                        rs.getString(1), rs.getString(2)};
+                }
+            }
+        }
+        return null;
+    }
+
+    public String getMd5ByFilename(String filename) throws SQLException {
+        writer.flush();
+        try (ConnectionPool.Session db = pool.getConnection()) {
+            PreparedStatement select = db.prepare(config.get("select-by-file"));
+            select.setString(1, filename);
+            try (ResultSet rs = select.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getString(1);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queues the file, it's visible to {@link #searchDup(String)} right away.
+     */
+    public void addFile(final String md5sum, final String from,
+            final String url, final String file, final List<String> tags) {
+        writer.write(new String[]{file, url, BatchWriter.now(), from},
+                new BatchWriter.Record() {
+                    @Override
+                    public void write(BatchWriter.Batch batch) throws SQLException {
+                        batch.add(config.get("insert"), md5sum, from, url, file);
+                        for (String tag : tags) {
+                            batch.add(config.get("insert-tag"), md5sum, tag);
+                        }
+                    }
+                }, "file:" + md5sum);
+    }
+
+    public void deleteFile(String md5sum) throws SQLException {
+        writer.flush();
+        try (ConnectionPool.Session db = pool.getConnection()) {
+            for (String query : new String[]{"delete", "delete-tag",
+                "delete-signature", "delete-dhash", "delete-urls"}) {
+                PreparedStatement delete = db.prepare(config.get(query));
+                delete.setString(1, md5sum);
+                delete.executeUpdate();
+            }
+        }
+    }
+
+    public void addSignature(final String md5sum,
+            final ImageSignature signature) {
+        writer.write(null, new BatchWriter.Record() {
+            @Override
+            public void write(BatchWriter.Batch batch) throws SQLException {
+                batch.add(config.get("insert-signature"), md5sum, signature.grid);
+                batch.add(config.get("insert-dhash"), md5sum, signature.dHash);
+            }
+        });
+    }
+
+    public void loadSignatures(SignatureIndex signatures, DHashIndex dHashes)
+            throws SQLException {
+        writer.flush();
+        try (ConnectionPool.Session db = pool.getConnection()) {
+            try (ResultSet rs = db.prepare(config.get("select-signature")).executeQuery()) {
+                while (rs.next()) {
+                    byte[] signature = rs.getBytes(2);
+                    if (signature != null) {
+                        signatures.add(rs.getString(1), signature);
+                    }
+                }
+            }
+            try (ResultSet rs = db.prepare(config.get("select-dhash")).executeQuery()) {
+                while (rs.next()) {
+                    dHashes.add(rs.getString(1), rs.getLong(2));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return MD5 sum of the file, ETag and Last-Modified or
+     * <code>null</code> if the URL isn't found
+     */
+    public String[] searchURL(String url) throws SQLException {
+        String[] pending = (String[]) writer.getPending("url:" + url);
+        if (pending != null) {
+            return pending;
+        }
+        try (ConnectionPool.Session db = pool.getConnection()) {
+            PreparedStatement select = db.prepare(config.get("select-url"));
+            select.setString(1, url);
+            try (ResultSet rs = select.executeQuery()) {
+                if (rs.next()) {
+                    return new String[]{rs.getString(1), rs.getString(2),
+                        rs.getString(3)};
+                }
+            }
+        }
+        return null;
+    }
+
+    public String searchURLByPrefix(long length, String prefix) throws SQLException {
+        String[] pending = (String[]) writer.getPending("prefix:" + length + ":" + prefix);
+        if (pending != null) {
+            return pending[0];
+        }
+        try (ConnectionPool.Session db = pool.getConnection()) {
+            PreparedStatement select = db.prepare(config.get("select-url-by-prefix"));
+            select.setLong(1, length);
+            select.setString(2, prefix);
+            try (ResultSet rs = select.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getString(1);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queues the URL, a queued record of the same URL is replaced.
+     */
+    public void addURL(final String url, final String md5sum,
+            final String etag, final String modified, final long length,
+            final String prefix) {
+        writer.write(new String[]{md5sum, etag, modified},
+                new BatchWriter.Record() {
+                    @Override
+                    public void write(BatchWriter.Batch batch) throws SQLException {
+                        batch.add(config.get("delete-url"), url);
+                        batch.add(config.get("insert-url"), url, md5sum, etag,
+                                modified, length, prefix);
+                    }
+                }, "url:" + url, "prefix:" + length + ":" + prefix);
+    }
+}
+
+/**
+ * In-memory index of image signatures.
+ * <p>
+ * A signature is a grid of RGB pixels, the distance between two signatures
+ * is the sum of Euclidean distances between their pixels rounded up. It is
+ * a metric, so the index keeps distances from every signature to a few fixed
+ * pivot signatures and skips signatures which are too far from the query by
+ * the triangle inequality. Signatures are grouped into buckets by distance to
+ * the first pivot, so a lookup checks only a few buckets.
+ */
+class SignatureIndex {
+
+    private static final int PIVOTS = 4;
+    private static final int BUCKET_WIDTH = 64;
+    private static final short[] CEIL_SQRT;
+
+    static {
+        // Rounded up square roots of all possible sums of three squared bytes
+        CEIL_SQRT = new short[255 * 255 * 3 + 1];
+        int root = 0;
+        for (int i = 0; i < CEIL_SQRT.length; i++) {
+            while (root * root < i) {
+                root++;
+            }
+            CEIL_SQRT[i] = (short) root;
+        }
+    }
+
+    private static class IntList {
+
+        private int[] values = new int[4];
+        private int size;
+
+        public void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        public void replace(int value, int newValue) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == value) {
+                    if (newValue < 0) {
+                        values[i] = values[--size];
+                    } else {
+                        values[i] = newValue;
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private final int length;
+    private final byte[][] pivots;
+    private final Map<String, Integer> positions;
+    private final Map<Integer, IntList> buckets;
+    private String[] md5s;
+    private byte[] signatures;
+    private int[] pivotDistances;
+    private int size;
+
+    /**
+     * @param length length of signatures in bytes
+     */
+    public SignatureIndex(int length) {
+        this.length = length;
+        positions = new HashMap<>();
+        buckets = new HashMap<>();
+        md5s = new String[16];
+        signatures = new byte[16 * length];
+        pivotDistances = new int[16 * PIVOTS];
+        // Synthetic pivots: black, white, gradient and checkerboard images
+        pivots = new byte[PIVOTS][length];
+        Arrays.fill(pivots[1], (byte) 255);
+        for (int i = 0; i < length; i++) {
+            pivots[2][i] = (byte) (i * 255 / Math.max(length - 1, 1));
+            pivots[3][i] = (byte) ((i / 3) % 2 == 0 ? 0 : 255);
+        }
+    }
+
+    /**
+     * Returns distance between two signatures or any value greater than
+     * the limit if the distance is greater than the limit.
+     */
+    private static int distance(byte[] a, int aOffset, byte[] b, int bOffset,
+            int length, int limit) {
+        int d = 0;
+        for (int i = 0; i < length; i += 3) {
+            int dr = (a[aOffset + i] & 0xff) - (b[bOffset + i] & 0xff);
+            int dg = (a[aOffset + i + 1] & 0xff) - (b[bOffset + i + 1] & 0xff);
+            int db = (a[aOffset + i + 2] & 0xff) - (b[bOffset + i + 2] & 0xff);
+            d += CEIL_SQRT[dr * dr + dg * dg + db * db];
+            if (d > limit) {
+                return d;
+            }
+        }
+        return d;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Adds the signature, a signature with the same MD5 sum is replaced.
+     *
+     * @param md5 MD5 sum of the file
+     * @param signature signature of the image
+     */
+    public synchronized void add(String md5, byte[] signature) {
+        if (signature.length != length) {
+            return;
+        }
+        remove(md5);
+        if (size == md5s.length) {
+            int capacity = size * 2;
+            md5s = Arrays.copyOf(md5s, capacity);
+            signatures = Arrays.copyOf(signatures, capacity * length);
+            pivotDistances = Arrays.copyOf(pivotDistances, capacity * PIVOTS);
+        }
+        int position = size++;
+        md5s[position] = md5;
+        System.arraycopy(signature, 0, signatures, position * length, length);
+        for (int k = 0; k < PIVOTS; k++) {
+            pivotDistances[position * PIVOTS + k] = distance(signature, 0,
+                    pivots[k], 0, length, Integer.MAX_VALUE);
+        }
+        positions.put(md5, position);
+        bucket(position, true).add(position);
+    }
+
+    /**
+     * Removes the signature.
+     *
+     * @param md5 MD5 sum of the file
+     */
+    public synchronized void remove(String md5) {
+        Integer position = positions.remove(md5);
+        if (position == null) {
+            return;
+        }
+        bucket(position, false).replace(position, -1);
+        // Move the last signature to the freed place
+        int last = --size;
+        if (position != last) {
+            bucket(last, false).replace(last, position);
+            md5s[position] = md5s[last];
+            System.arraycopy(signatures, last * length, signatures,
+                    position * length, length);
+            System.arraycopy(pivotDistances, last * PIVOTS, pivotDistances,
+                    position * PIVOTS, PIVOTS);
+            positions.put(md5s[position], position);
+        }
+        md5s[last] = null;
+    }
+
+    private IntList bucket(int position, boolean create) {
+        int key = pivotDistances[position * PIVOTS] / BUCKET_WIDTH;
+        IntList bucket = buckets.get(key);
+        if (bucket == null && create) {
+            bucket = new IntList();
+            buckets.put(key, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * Finds the nearest signature within the specified distance.
+     *
+     * @param signature signature of the image
+     * @param maxDistance maximum distance
+     * @return MD5 sum of the found image or <code>null</code>
+     */
+    public synchronized String search(byte[] signature, int maxDistance) {
+        if (signature.length != length) {
+            return null;
+        }
+        int[] q = new int[PIVOTS];
+        for (int k = 0; k < PIVOTS; k++) {
+            q[k] = distance(signature, 0, pivots[k], 0, length, Integer.MAX_VALUE);
+        }
+        String result = null;
+        int limit = maxDistance;
+        int from = Math.max(q[0] - maxDistance, 0) / BUCKET_WIDTH;
+        int to = (q[0] + maxDistance) / BUCKET_WIDTH;
+        for (int b = from; b <= to; b++) {
+            IntList bucket = buckets.get(b);
+            if (bucket == null) {
+                continue;
+            }
+            candidates:
+            for (int i = 0; i < bucket.size; i++) {
+                int position = bucket.values[i];
+                int offset = position * PIVOTS;
+                for (int k = 0; k < PIVOTS; k++) {
+                    if (Math.abs(q[k] - pivotDistances[offset + k]) > limit) {
+                        continue candidates;
+                    }
+                }
+                int d = distance(signature, 0, signatures, position * length,
+                        length, limit);
+                if (d <= limit) {
+                    result = md5s[position];
+                    // Look for a closer one
+                    limit = d - 1;
+                    if (limit < 0) {
+                        return result;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+}
+
+/**
+ * Signatures of an image.
+ */
+class ImageSignature {
+
+    /**
+     * Grid of RGB pixels of the scaled image.
+     */
+    public final byte[] grid;
+    /**
+     * Difference hash, 64 bits of brightness gradients.
+     */
+    public final long dHash;
+
+    public ImageSignature(byte[] grid, long dHash) {
+        this.grid = grid;
+        this.dHash = dHash;
+    }
+}
+
+/**
+ * In-memory index of difference hashes of images. Hashes are compared by
+ * Hamming distance, which takes a few nanoseconds, so they are just scanned.
+ */
+class DHashIndex {
+
+    private final Map<String, Integer> positions;
+    private String[] md5s;
+    private long[] hashes;
+    private int size;
+
+    public DHashIndex() {
+        positions = new HashMap<>();
+        md5s = new String[16];
+        hashes = new long[16];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void add(String md5, long hash) {
+        Integer position = positions.get(md5);
+        if (position == null) {
+            if (size == md5s.length) {
+                md5s = Arrays.copyOf(md5s, size * 2);
+                hashes = Arrays.copyOf(hashes, size * 2);
+            }
+            position = size++;
+            md5s[position] = md5;
+            positions.put(md5, position);
+        }
+        hashes[position] = hash;
+    }
+
+    public synchronized void remove(String md5) {
+        Integer position = positions.remove(md5);
+        if (position == null) {
+            return;
+        }
+        // Move the last hash to the freed place
+        int last = --size;
+        if (position != last) {
+            md5s[position] = md5s[last];
+            hashes[position] = hashes[last];
+            positions.put(md5s[position], position);
+        }
+        md5s[last] = null;
+    }
+
+    /**
+     * Finds the nearest hash within the specified distance.
+     *
+     * @param hash difference hash of the image
+     * @param maxDistance maximum number of different bits
+     * @return MD5 sum of the found image or <code>null</code>
+     */
+    public synchronized String search(long hash, int maxDistance) {
+        String result = null;
+        int limit = maxDistance;
+        for (int i = 0; i < size; i++) {
+            int d = Long.bitCount(hash ^ hashes[i]);
+            if (d <= limit) {
+                result = md5s[i];
+                if (d == 0) {
+                    break;
+                }
+                limit = d - 1;
+            }
+        }
+        return result;
     }
 }
@@ -0,0 +1,240 @@
+/*
+ *  JavaXMPPBot.modules - official modules for JavaXMPPBot
+ *  Copyright 2011 Mikhail Telnov <michael.telnov@gmail.com>
+ *
+ *  This file is part of JavaXMPPBot.modules.
+ *
+ *  JavaXMPPBot.modules is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JavaXMPPBot.modules is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JavaXMPPBot.modules.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  $Id$
+ *
+ */
+package com.devti.JavaXMPPBot.modules;
+
+import com.devti.JavaXMPPBot.ConnectionPool;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of duplicate checks. A Bloom filter of all stored keys tells that a
+ * key is new without a query, recently found records are kept in a LRU map.
+ * Keys can't be removed from the filter, removed keys are just checked in the
+ * DB again. When the filter is full a new filter of double capacity is added,
+ * so the rate of false positives stays low while the table grows. Until
+ * {@link #load(Collection)} is called every key has to be checked in the DB.
+ * <p>
+ * Modules and bots using the same table through the same
+ * {@link ConnectionPool} share one cache, so keys stored by any of them are
+ * known to all. Keys stored by other processes aren't seen, so a DB with
+ * duplicate checks mustn't be written by other programs.
+ */
+class DuplicateCache {
+
+    private static final Map<List<Object>, DuplicateCache> caches = new HashMap<>();
+
+    // 10 bits per key and 7 hash functions give about 1% of false positives
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASHES = 7;
+    private static final int MIN_CAPACITY = 1024;
+
+    private final Map<String, String[]> recent;
+    private final List<long[]> filters;
+    private int capacity;
+    private int count;
+    private long removals;
+    private boolean loaded;
+    private List<Object> key;
+    private int references;
+
+    /**
+     * @param size maximum number of recently found records
+     */
+    public DuplicateCache(final int size) {
+        recent = new LinkedHashMap<String, String[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+                return size() > size;
+            }
+        };
+        filters = new ArrayList<>();
+    }
+
+    /**
+     * Returns the cache of the table, it's created if there is no cache for
+     * it yet. Every call must be paired with {@link #release()}.
+     *
+     * @param pool pool of connections to the DB
+     * @param table query selecting a record of the table by its key
+     * @param size maximum number of recently found records, it's used only
+     * when the cache is created
+     * @return the cache
+     */
+    public static DuplicateCache acquire(ConnectionPool pool, String table,
+            int size) {
+        List<Object> key = Arrays.<Object>asList(pool, table);
+        synchronized (caches) {
+            DuplicateCache cache = caches.get(key);
+            if (cache == null) {
+                cache = new DuplicateCache(size);
+                cache.key = key;
+                caches.put(key, cache);
+            }
+            cache.references++;
+            return cache;
+        }
+    }
+
+    /**
+     * Releases the cache acquired by
+     * {@link #acquire(ConnectionPool, String, int)}.
+     */
+    public void release() {
+        synchronized (caches) {
+            if (key != null && --references == 0) {
+                caches.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the filter has been built
+     */
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Builds the filter from all stored keys.
+     *
+     * @param keys stored keys
+     */
+    public synchronized void load(Collection<String> keys) {
+        filters.clear();
+        addFilter(Math.max(keys.size() * 2, MIN_CAPACITY));
+        for (String key : keys) {
+            put(key);
+        }
+        loaded = true;
+    }
+
+    private void addFilter(int capacity) {
+        this.capacity = capacity;
+        count = 0;
+        filters.add(new long[(int) (((long) capacity * BITS_PER_KEY + 63) / 64)]);
+    }
+
+    private static long hash(String key) {
+        // FNV-1a followed by the MurmurHash3 finalizer
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static boolean test(long[] bits, long hash, boolean set) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long size = bits.length * 64L;
+        boolean result = true;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % size;
+            long mask = 1L << bit;
+            if ((bits[(int) (bit >>> 6)] & mask) == 0) {
+                if (!set) {
+                    return false;
+                }
+                result = false;
+                bits[(int) (bit >>> 6)] |= mask;
+            }
+        }
+        return result;
+    }
+
+    private void put(String key) {
+        if (count >= capacity) {
+            addFilter(capacity * 2);
+        }
+        if (!test(filters.get(filters.size() - 1), hash(key), true)) {
+            count++;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the key has never been stored
+     */
+    public synchronized boolean isNew(String key) {
+        if (!loaded) {
+            return false;
+        }
+        long hash = hash(key);
+        for (long[] bits : filters) {
+            if (test(bits, hash, false)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return recently found record or <code>null</code>
+     */
+    public synchronized String[] get(String key) {
+        return recent.get(key);
+    }
+
+    /**
+     * Returns a stamp for {@link #remember(String, String[], long)}, take it
+     * before querying the DB.
+     */
+    public synchronized long getStamp() {
+        return removals;
+    }
+
+    /**
+     * Keeps the record found in the DB unless a key has been removed since
+     * the stamp was taken.
+     */
+    public synchronized void remember(String key, String[] record, long stamp) {
+        if (stamp == removals) {
+            recent.put(key, record);
+        }
+    }
+
+    /**
+     * Adds the new record.
+     */
+    public synchronized void add(String key, String[] record) {
+        if (loaded) {
+            put(key);
+        }
+        recent.put(key, record);
+    }
+
+    public synchronized void remove(String key) {
+        recent.remove(key);
+        removals++;
+    }
+}
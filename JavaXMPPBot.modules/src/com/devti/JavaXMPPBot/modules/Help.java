@@ -47,7 +47,15 @@ public class Help extends Module {
             String message = "Available commands:";
             Command[] cmds = bot.getCommands(bot.isOwner(msg.fromJID));
             for (Command cmd : cmds) {
-                message += String.format("\n%s - %s", cmd.command, cmd.description);
+                String aliases = "";
+                for (String alias : bot.getCommandRouter().getAliases(cmd)) {
+                    aliases += (aliases.isEmpty() ? " (" : ", ") + alias;
+                }
+                if (!aliases.isEmpty()) {
+                    aliases += ")";
+                }
+                message += String.format("\n%s%s - %s", cmd.command, aliases,
+                        cmd.description);
             }
             bot.sendReply(msg, message);
         }
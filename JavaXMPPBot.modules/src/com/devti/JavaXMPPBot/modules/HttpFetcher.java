@@ -0,0 +1,685 @@
+/*
+ *  JavaXMPPBot - XMPP(Jabber) bot written in Java
+ *  Copyright 2010 Mikhail Telnov <michael.telnov@gmail.com>
+ *
+ *  This file is part of JavaXMPPBot.
+ *
+ *  JavaXMPPBot is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JavaXMPPBot is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JavaXMPPBot.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  $Id$
+ *
+ */
+package com.devti.JavaXMPPBot.modules;
+
+import com.devti.JavaXMPPBot.Bot;
+import com.devti.JavaXMPPBot.Logger;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP client shared by modules of a bot.
+ * <p>
+ * Fetches run on a bounded pool of threads. No more than the specified
+ * number of fetches from the same host run at once, other fetches from that
+ * host wait in a queue of the host without taking a thread; the total number
+ * of waiting fetches is limited. Connections are made with
+ * {@link HttpURLConnection}, which keeps connections to every host alive for
+ * reuse as long as responses are closed rather than aborted. Redirects
+ * are followed here, so their number and protocols are limited, and reading
+ * a body longer than the limit of the request fails.
+ * <p>
+ * The fetcher of a bot is created by the first module which acquires it,
+ * with settings of that module. Fetches submitted by a module are cancelled
+ * when that module releases the fetcher.
+ *
+ * @author Mikhail Telnov <michael.telnov@gmail.com>
+ */
+class HttpFetcher {
+
+    private static final Map<String, HttpFetcher> fetchers = new HashMap<>();
+
+    /**
+     * Options of a request. Modules keep their proxy and timeouts and apply
+     * them to every request.
+     */
+    public static class Request {
+
+        private final URL url;
+        private final Map<String, String> headers;
+        private Proxy proxy;
+        private int connectTimeout;
+        private int readTimeout;
+        private int maxRedirects;
+        private long maxBytes;
+        private boolean keepAlive;
+
+        /**
+         * @param url HTTP or HTTPS URL
+         * @throws MalformedURLException if the URL is invalid or isn't an
+         * HTTP one
+         */
+        public Request(String url) throws MalformedURLException {
+            this.url = new URL(url);
+            if (!isHTTP(this.url)) {
+                throw new MalformedURLException("Not an HTTP URL: " + url);
+            }
+            headers = new LinkedHashMap<>();
+            proxy = Proxy.NO_PROXY;
+            connectTimeout = 10000;
+            readTimeout = 30000;
+            maxRedirects = 5;
+            keepAlive = true;
+        }
+
+        public URL getURL() {
+            return url;
+        }
+
+        public Request proxy(Proxy proxy) {
+            this.proxy = proxy;
+            return this;
+        }
+
+        /**
+         * @param connect connect timeout in milliseconds, 0 means no timeout
+         * @param read read timeout in milliseconds, 0 means no timeout
+         * @return this request
+         */
+        public Request timeouts(int connect, int read) {
+            connectTimeout = connect;
+            readTimeout = read;
+            return this;
+        }
+
+        public Request maxRedirects(int maxRedirects) {
+            this.maxRedirects = maxRedirects;
+            return this;
+        }
+
+        /**
+         * @param maxBytes maximum length of the body, 0 means no limit
+         * @return this request
+         */
+        public Request maxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Disable it for requests whose bodies are often left unread:
+         * {@link HttpURLConnection} reads up to 512KB left in the body of a
+         * kept-alive connection in background even if the response is
+         * aborted.
+         *
+         * @param keepAlive whether the connection is kept for reuse
+         * @return this request
+         */
+        public Request keepAlive(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        public Request header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+
+    /**
+     * Response to a request. It must be closed to return its connection for
+     * reuse or aborted if its body won't be read to the end.
+     */
+    public static class Response implements AutoCloseable {
+
+        private final URL url;
+        private final HttpURLConnection connection;
+        private final int code;
+        private final long maxBytes;
+        private InputStream body;
+        private boolean aborted;
+
+        private Response(URL url, HttpURLConnection connection, int code,
+                long maxBytes) {
+            this.url = url;
+            this.connection = connection;
+            this.code = code;
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * @return URL of the response after redirects
+         */
+        public URL getURL() {
+            return url;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public String getHeader(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        public String getContentType() {
+            return connection.getContentType();
+        }
+
+        public String getContentEncoding() {
+            return connection.getContentEncoding();
+        }
+
+        /**
+         * @return length of the body or -1 if it isn't known
+         */
+        public long getContentLength() {
+            return connection.getContentLengthLong();
+        }
+
+        /**
+         * @return body of the response, reading it fails when it's longer
+         * than the limit of the request
+         * @throws IOException if the body can't be read or the server has
+         * returned an error (4xx or 5xx)
+         */
+        public InputStream getBody() throws IOException {
+            if (code >= 400) {
+                throw new IOException("Server returned HTTP response code: "
+                        + code + " for URL: " + url);
+            }
+            return getErrorBody();
+        }
+
+        /**
+         * Unlike {@link #getBody()} returns the body of an error too.
+         *
+         * @return body of the response whatever its code is
+         * @throws IOException if the body can't be read
+         */
+        public InputStream getErrorBody() throws IOException {
+            if (body == null) {
+                InputStream in;
+                if (code >= 400) {
+                    in = connection.getErrorStream();
+                    if (in == null) {
+                        throw new IOException("Server returned HTTP response code: "
+                                + code + " for URL: " + url);
+                    }
+                } else {
+                    in = connection.getInputStream();
+                }
+                body = maxBytes > 0 ? new LimitedInputStream(in, maxBytes) : in;
+            }
+            return body;
+        }
+
+        /**
+         * Drops the connection instead of reading the rest of the body, see
+         * {@link Request#keepAlive(boolean)}. Closing the response does
+         * nothing after that.
+         */
+        public void abort() {
+            aborted = true;
+            connection.disconnect();
+        }
+
+        @Override
+        public void close() {
+            if (aborted) {
+                return;
+            }
+            try {
+                getErrorBody().close();
+            } catch (IOException e) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Callback of {@link #fetch(Object, Request, Handler)}, it's called in a
+     * thread of the fetcher.
+     */
+    public interface Handler {
+
+        /**
+         * @param response the response, it's closed after the call
+         * @throws IOException if the body can't be read
+         */
+        public void completed(Response response) throws IOException;
+
+        /**
+         * @param e the error, other exceptions of the fetch or of
+         * {@link #completed(Response)} are wrapped into IOException
+         */
+        public void failed(IOException e);
+    }
+
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private final long limit;
+        private long count;
+
+        public LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        private void count(long n) throws IOException {
+            if (n > 0) {
+                count += n;
+                if (count > limit) {
+                    throw new IOException("Response is larger than limit ("
+                            + limit + " bytes)");
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            count(b < 0 ? 0 : 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            count(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+    }
+
+    private class Task extends FutureTask<Void> {
+
+        private final Object owner;
+        private final String url;
+        private final long queuedAt;
+
+        public Task(Object owner, String url, Runnable runnable) {
+            super(runnable, null);
+            this.owner = owner;
+            this.url = url;
+            queuedAt = System.nanoTime();
+        }
+
+        @Override
+        protected void done() {
+            synchronized (lock) {
+                Set<Task> tasks = owners.get(owner);
+                if (tasks != null) {
+                    tasks.remove(this);
+                }
+            }
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                get();
+            } catch (ExecutionException e) {
+                logger.warn("An error occurred during fetching " + url,
+                        e.getCause() instanceof Exception
+                        ? (Exception) e.getCause() : e);
+            } catch (InterruptedException | CancellationException e) {
+                // It has been cancelled
+            }
+        }
+    }
+
+    private class HostQueue {
+
+        private final String host;
+        private final ArrayDeque<Task> tasks;
+        private int active;
+
+        public HostQueue(String host) {
+            this.host = host;
+            tasks = new ArrayDeque<>();
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        private final HostQueue queue;
+        private final Task task;
+
+        public Worker(HostQueue queue, Task task) {
+            this.queue = queue;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            synchronized (lock) {
+                pending--;
+                running++;
+                waitTime += System.nanoTime() - task.queuedAt;
+            }
+            try {
+                task.run();
+            } finally {
+                synchronized (lock) {
+                    running--;
+                    completed++;
+                    Task next = queue.tasks.poll();
+                    if (next != null && !executor.isShutdown()) {
+                        executor.execute(new Worker(queue, next));
+                    } else {
+                        pending -= queue.tasks.size();
+                        queue.tasks.clear();
+                        if (--queue.active == 0) {
+                            hosts.remove(queue.host);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private final String botId;
+    private final Object lock;
+    private final Logger logger;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, HostQueue> hosts;
+    private final Map<Object, Set<Task>> owners;
+    private final int perHost;
+    private final int capacity;
+    private int references;
+    private int pending;
+    private int maxPending;
+    private int running;
+    private long submitted;
+    private long completed;
+    private long rejected;
+    private long waitTime;
+
+    private HttpFetcher(final Bot bot, int threads, int perHost, int capacity) {
+        botId = bot.getBotId();
+        lock = new Object();
+        logger = new Logger(bot.getLog(), "[HttpFetcher] ");
+        hosts = new HashMap<>();
+        owners = new HashMap<>();
+        this.perHost = Math.max(perHost, 1);
+        this.capacity = Math.max(capacity, 1);
+        threads = Math.max(threads, 1);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger number = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r,
+                                HttpFetcher.class.getName() + "("
+                                + bot.getBotId() + ")-"
+                                + number.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the fetcher of the bot, it's created if the bot has no fetcher
+     * yet. Every call must be paired with {@link #release(Object)}.
+     *
+     * @param bot the bot
+     * @param threads maximum number of fetching threads
+     * @param perHost maximum number of simultaneous fetches from one host
+     * @param capacity maximum number of waiting fetches
+     * @return the fetcher
+     */
+    public static HttpFetcher acquire(Bot bot, int threads, int perHost,
+            int capacity) {
+        synchronized (fetchers) {
+            HttpFetcher fetcher = fetchers.get(bot.getBotId());
+            if (fetcher == null) {
+                fetcher = new HttpFetcher(bot, threads, perHost, capacity);
+                fetchers.put(bot.getBotId(), fetcher);
+            }
+            fetcher.references++;
+            return fetcher;
+        }
+    }
+
+    /**
+     * Cancels fetches of the owner and releases the fetcher. Threads are
+     * stopped after the last release.
+     *
+     * @param owner the module which has acquired the fetcher
+     */
+    public void release(Object owner) {
+        Set<Task> tasks;
+        synchronized (lock) {
+            tasks = owners.remove(owner);
+        }
+        if (tasks != null) {
+            for (Task task : tasks) {
+                task.cancel(true);
+            }
+        }
+        synchronized (fetchers) {
+            if (--references > 0) {
+                return;
+            }
+            fetchers.remove(botId);
+        }
+        synchronized (lock) {
+            executor.shutdownNow();
+        }
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns a proxy described by "proxy.type", "proxy.host" and
+     * "proxy.port" config properties.
+     *
+     * @param config config of a module
+     * @return the proxy
+     * @throws IllegalArgumentException if the properties are invalid
+     */
+    public static Proxy createProxy(Map<String, String> config) {
+        String type = config.get("proxy.type");
+        if (type == null || type.equalsIgnoreCase("NONE")
+                || type.equalsIgnoreCase("DIRECT")) {
+            return Proxy.NO_PROXY;
+        }
+        InetSocketAddress address;
+        if (config.get("proxy.host") != null) {
+            address = new InetSocketAddress(config.get("proxy.host"),
+                    new Integer(config.get("proxy.port")));
+        } else {
+            address = new InetSocketAddress(0);
+        }
+        return new Proxy(Proxy.Type.valueOf(type.toUpperCase()), address);
+    }
+
+    private static boolean isHTTP(URL url) {
+        return url.getProtocol().equalsIgnoreCase("http")
+                || url.getProtocol().equalsIgnoreCase("https");
+    }
+
+    private static String getHost(String url) {
+        try {
+            String host = new URL(url).getHost();
+            return host == null ? "" : host.toLowerCase();
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Queues the task, it's run in a thread of the fetcher and is counted
+     * against the limit of the host of the URL.
+     *
+     * @param owner the module which submits the task
+     * @param url URL fetched by the task
+     * @param runnable the task
+     * @return future of the task or <code>null</code> if the queue is full
+     */
+    public Future<?> submit(Object owner, String url, Runnable runnable) {
+        String host = getHost(url);
+        Task task = new Task(owner, url, runnable);
+        synchronized (lock) {
+            if (pending >= capacity || executor.isShutdown()) {
+                rejected++;
+                return null;
+            }
+            submitted++;
+            pending++;
+            if (pending > maxPending) {
+                maxPending = pending;
+            }
+            Set<Task> tasks = owners.get(owner);
+            if (tasks == null) {
+                tasks = new HashSet<>();
+                owners.put(owner, tasks);
+            }
+            tasks.add(task);
+            HostQueue queue = hosts.get(host);
+            if (queue == null) {
+                queue = new HostQueue(host);
+                hosts.put(host, queue);
+            }
+            if (queue.active < perHost) {
+                queue.active++;
+                executor.execute(new Worker(queue, task));
+            } else {
+                queue.tasks.add(task);
+            }
+            return task;
+        }
+    }
+
+    /**
+     * Queues the request and passes its response to the handler.
+     *
+     * @param owner the module which submits the request
+     * @param request the request
+     * @param handler the handler
+     * @return future of the fetch or <code>null</code> if the queue is full
+     */
+    public Future<?> fetch(Object owner, final Request request,
+            final Handler handler) {
+        return submit(owner, request.url.toString(), new Runnable() {
+            @Override
+            public void run() {
+                try (Response response = open(request)) {
+                    handler.completed(response);
+                } catch (IOException e) {
+                    handler.failed(e);
+                } catch (RuntimeException e) {
+                    // The handler must learn about the fetch in any case
+                    handler.failed(new IOException(e));
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends the request in the current thread, use it in tasks passed to
+     * {@link #submit(Object, String, Runnable)}.
+     *
+     * @param request the request
+     * @return the response, it must be closed
+     * @throws IOException if the request fails
+     */
+    public Response open(Request request) throws IOException {
+        URL url = request.url;
+        for (int redirects = 0;; redirects++) {
+            HttpURLConnection connection
+                    = (HttpURLConnection) url.openConnection(request.proxy);
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(request.connectTimeout);
+            connection.setReadTimeout(request.readTimeout);
+            if (!request.keepAlive) {
+                connection.setRequestProperty("Connection", "close");
+            }
+            for (Map.Entry<String, String> header : request.headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            int code;
+            try {
+                code = connection.getResponseCode();
+            } catch (IOException e) {
+                connection.disconnect();
+                throw e;
+            }
+            Response response = new Response(url, connection, code,
+                    request.maxBytes);
+            String location = connection.getHeaderField("Location");
+            if (location == null || (code != 301 && code != 302 && code != 303
+                    && code != 307 && code != 308)) {
+                return response;
+            }
+            response.close();
+            if (redirects >= request.maxRedirects) {
+                throw new IOException("Too many redirects from " + request.url);
+            }
+            url = new URL(url, location);
+            if (!isHTTP(url)) {
+                throw new IOException("Redirect to unsupported URL " + url);
+            }
+        }
+    }
+
+    /**
+     * Returns statistics of the fetcher as a human-readable text.
+     *
+     * @return statistics
+     */
+    public String getStatistics() {
+        synchronized (lock) {
+            long started = completed + running;
+            return String.format("Running: %d\nWaiting: %d (max %d, limit %d)"
+                    + "\nHosts: %d\nSubmitted: %,d\nCompleted: %,d"
+                    + "\nRejected: %,d\nAverage wait: %,d ms",
+                    running, pending, maxPending, capacity, hosts.size(),
+                    submitted, completed, rejected,
+                    started == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitTime / started));
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ *  JavaXMPPBot.modules - official modules for JavaXMPPBot
+ *  Copyright 2011 Mikhail Telnov <michael.telnov@gmail.com>
+ *
+ *  This file is part of JavaXMPPBot.modules.
+ *
+ *  JavaXMPPBot.modules is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JavaXMPPBot.modules is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JavaXMPPBot.modules.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  $Id$
+ *
+ */package com.devti.JavaXMPPBot.modules;
+
+import com.devti.JavaXMPPBot.BatchWriter;
+import com.devti.JavaXMPPBot.ConnectionPool;
+import com.devti.JavaXMPPBot.Logger;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Access to a table of records identified by a key (URL of a link, ID of a
+ * video) and to the table of their tags. Duplicates are searched by keys,
+ * a found record is its time and author. Queries are taken from the config:
+ * "create", "create-tags", "create-indexes", "insert", "insert-tag",
+ * "select", "select-keys", "delete" and "delete-tag". The cache of duplicate
+ * checks is shared by all DAOs of the same table.
+ */
+class KeyedDAO {
+
+    private final ConnectionPool pool;
+    private final Map<String, String> config;
+    private final BatchWriter writer;
+    private final DuplicateCache cache;
+
+    public KeyedDAO(ConnectionPool pool, Map<String, String> config, Logger log) {
+        this.pool = pool;
+        this.config = config;
+        pool.migrate(config.get("create"), config.get("create-tags"));
+        if (config.get("create-indexes") != null) {
+            pool.migrateOptional(config.get("create-indexes").split(";"));
+        }
+        writer = new BatchWriter(log, pool,
+                new Integer(config.get("write-batch-size")),
+                new Long(config.get("write-delay")));
+        cache = DuplicateCache.acquire(pool, config.get("select"),
+                new Integer(config.get("dup-cache-size")));
+        if (config.get("select-keys") != null) {
+            // Keys are loaded by the first module using the table
+            synchronized (cache) {
+                if (!cache.isLoaded()) {
+                    loadKeys(log);
+                }
+            }
+        }
+    }
+
+    private void loadKeys(Logger log) {
+        try (ConnectionPool.Session db = pool.getConnection();
+                    ResultSet rs = db.prepare(config.get("select-keys")).executeQuery()) {
+            List<String> keys = new ArrayList<>();
+            while (rs.next()) {
+                keys.add(rs.getString(1));
+            }
+            cache.load(keys);
+            log.info("%d keys have been loaded for duplicate checks",
+                    keys.size());
+        } catch (SQLException e) {
+            log.warn("Can't load keys, every duplicate check will query the DB", e);
+        }
+    }
+
+    /**
+     * Writes queued records.
+     */
+    public void close() {
+        writer.close();
+        cache.release();
+    }
+
+    /**
+     * @return time and author of the record or <code>null</code> if it isn't
+     * found
+     */
+    public String[] search(String key) throws SQLException {
+        String[] pending = (String[]) writer.getPending(key);
+        if (pending != null) {
+            return pending;
+        }
+        String[] record = cache.get(key);
+        if (record != null) {
+            return record;
+        }
+        if (cache.isNew(key)) {
+            return null;
+        }
+        long stamp = cache.getStamp();
+        try (ConnectionPool.Session db = pool.getConnection()) {
+            PreparedStatement select = db.prepare(config.get("select"));
+            select.setString(1, key);
+            try (ResultSet rs = select.executeQuery()) {
+                if (rs.next()) {
+                    record = new String[]{rs.getString(1), rs.getString(2)};
+                    cache.remember(key, record, stamp);
+                    return record;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queues the record, it's visible to {@link #search(String)} right away.
+     * The shared cache learns the key only when the record is committed, so
+     * a dropped record isn't reported as a duplicate later.
+     *
+     * @param key the key
+     * @param from author of the record
+     * @param tags tags of the record
+     * @param params parameters of "insert" after the key
+     */
+    public void add(final String key, String from, final List<String> tags,
+            Object... params) {
+        final String[] record = new String[]{BatchWriter.now(), from};
+        final Object[] insertParams = new Object[params.length + 1];
+        insertParams[0] = key;
+        System.arraycopy(params, 0, insertParams, 1, params.length);
+        writer.write(record, new BatchWriter.CommitAware() {
+            @Override
+            public void write(BatchWriter.Batch batch) throws SQLException {
+                batch.add(config.get("insert"), insertParams);
+                for (String tag : tags) {
+                    batch.add(config.get("insert-tag"), key, tag);
+                }
+            }
+
+            @Override
+            public void committed() {
+                cache.add(key, record);
+            }
+        }, key);
+    }
+
+    public void delete(String key) throws SQLException {
+        writer.flush();
+        try (ConnectionPool.Session db = pool.getConnection()) {
+            PreparedStatement delete = db.prepare(config.get("delete"));
+            delete.setString(1, key);
+            delete.executeUpdate();
+            PreparedStatement deleteTag = db.prepare(config.get("delete-tag"));
+            deleteTag.setString(1, key);
+            deleteTag.executeUpdate();
+        } finally {
+            cache.remove(key);
+        }
+    }
+}
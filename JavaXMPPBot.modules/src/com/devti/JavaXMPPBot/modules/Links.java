@@ -24,38 +24,38 @@ package com.devti.JavaXMPPBot.modules;
 
 import com.devti.JavaXMPPBot.Bot;
 import com.devti.JavaXMPPBot.Command;
-import com.devti.JavaXMPPBot.Logger;
+import com.devti.JavaXMPPBot.ConnectionPool;
+import com.devti.JavaXMPPBot.DatabaseModule;
+import com.devti.JavaXMPPBot.Link;
 import com.devti.JavaXMPPBot.Message;
+import com.devti.JavaXMPPBot.MessageFilter;
 import com.devti.JavaXMPPBot.Module;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.InetSocketAddress;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.net.Proxy;
-import java.net.URL;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
-public class Links extends Module {
+public class Links extends Module implements DatabaseModule {
 
     static private final Map<String, String> defaultConfig = new HashMap<>();
 
@@ -67,7 +67,11 @@ public class Links extends Module {
         defaultConfig.put("db-url", "jdbc:sqlite:" + System.getProperty("user.home") + File.separator + "JavaXMPPBot" + File.separator + "links.db");
         defaultConfig.put("db-username", null);
         defaultConfig.put("db-password", null);
-        defaultConfig.put("url-pattern", "https?://[:a-z0-9%$&_./~()?=+-]+");
+        defaultConfig.put("db-pool-size", "4");
+        defaultConfig.put("write-batch-size", "50");
+        defaultConfig.put("write-delay", "1000");
+        defaultConfig.put("dup-cache-size", "1000");
+        defaultConfig.put("url-pattern", null);
         defaultConfig.put("tag-pattern", "\\[\\s*([^\\]]+)\\s*\\]");
         defaultConfig.put("exclude-pattern", null);
         defaultConfig.put("dup-reply", "%s is a duplicate posted at %s by %s");
@@ -76,30 +80,33 @@ public class Links extends Module {
         defaultConfig.put("exclude-specified-tags", "no");
         defaultConfig.put("disable-ssl-cert-validation", "yes");
         defaultConfig.put("accept", "text/html");
+        defaultConfig.put("title-max-bytes", "32768");
+        defaultConfig.put("threads", "4");
+        defaultConfig.put("threads-per-host", "2");
+        defaultConfig.put("queue-size", "100");
+        defaultConfig.put("connect-timeout", "10000");
+        defaultConfig.put("read-timeout", "30000");
+        defaultConfig.put("max-redirects", "5");
+        defaultConfig.put("metadata-cache-size", "1000");
+        defaultConfig.put("metadata-ttl", "3600");
+        defaultConfig.put("metadata-failure-ttl", "300");
         defaultConfig.put("create", "CREATE TABLE IF NOT EXISTS `javaxmppbot_links` (`time` INT(10), `url` TEXT(255), `title` TEXT(255), `comment` TEXT(255), `from` TEXT(255))");
         defaultConfig.put("create-tags", "CREATE TABLE IF NOT EXISTS `javaxmppbot_links_tags` (`url` TEXT(255), `tag` TEXT(20))");
+        defaultConfig.put("create-indexes", "CREATE INDEX IF NOT EXISTS `javaxmppbot_links_url` ON `javaxmppbot_links` (`url`);CREATE INDEX IF NOT EXISTS `javaxmppbot_links_tags_url` ON `javaxmppbot_links_tags` (`url`)");
         defaultConfig.put("insert", "INSERT INTO `javaxmppbot_links` (`time`, `url`, `title`, `comment`, `from`) VALUES (strftime('%s','now'), ?, ?, ?, ?)");
         defaultConfig.put("insert-tag", "INSERT INTO `javaxmppbot_links_tags` (`url`, `tag`) VALUES (?, ?)");
         defaultConfig.put("select", "SELECT datetime(`time`, 'unixepoch', 'localtime'), `from` FROM `javaxmppbot_links` WHERE `url` = ? LIMIT 1");
         defaultConfig.put("delete", "DELETE FROM `javaxmppbot_links` WHERE `url`=?");
+        defaultConfig.put("select-keys", "SELECT `url` FROM `javaxmppbot_links`");
         defaultConfig.put("delete-tag", "DELETE FROM `javaxmppbot_links_tags` WHERE `url`=?");
     }
 
-    private final Pattern urlPattern;
+    private Pattern urlPattern;
     private final Pattern tagPattern;
     private Pattern excludePattern;
 
-    private final String dbUrl;
-    private final String dbDriver;
-    private final String dbUsername;
-    private final String dbPassword;
-
-    private Connection connection;
-    private PreparedStatement psAddRecord;
-    private PreparedStatement psAddTag;
-    private PreparedStatement psSearchRecord;
-    private PreparedStatement psDeleteRecord;
-    private PreparedStatement psDeleteTag;
+    private final ConnectionPool pool;
+    private final KeyedDAO dao;
 
     protected final String dupReplyFormat;
     protected final boolean saveRealJID;
@@ -109,17 +116,19 @@ public class Links extends Module {
     private final boolean excludeTags;
 
     private final List<String> acceptableTypes;
+    private final TitleExtractor titleExtractor;
+    private final HttpFetcher fetcher;
+    private final Proxy proxy;
+    private final MetadataCache<Post> metadataCache;
 
     public Links(Bot bot, Map<String, String> cfg) {
         super(bot, cfg, defaultConfig);
 
         // Get properties
-        dbDriver = config.get("db-driver");
-        dbUrl = config.get("db-url");
-        dbUsername = config.get("db-username");
-        dbPassword = config.get("db-password");
-        urlPattern = Pattern.compile(config.get("url-pattern"),
-                Pattern.CASE_INSENSITIVE);
+        if (config.get("url-pattern") != null) {
+            urlPattern = Pattern.compile(config.get("url-pattern"),
+                    Pattern.CASE_INSENSITIVE);
+        }
         tagPattern = Pattern.compile(config.get("tag-pattern"),
                 Pattern.CASE_INSENSITIVE);
         if (config.get("exclude-pattern") != null) {
@@ -136,6 +145,24 @@ public class Links extends Module {
         excludeTags = config.get("exclude-specified-tags").equalsIgnoreCase("yes");
         includeTags = (!excludeTags && (tags.length > 0));
 
+        titleExtractor = new TitleExtractor(
+                new Integer(config.get("title-max-bytes")));
+        Proxy p;
+        try {
+            p = HttpFetcher.createProxy(config);
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid proxy settings: %s", e.getLocalizedMessage());
+            p = Proxy.NO_PROXY;
+        }
+        proxy = p;
+        fetcher = HttpFetcher.acquire(bot, new Integer(config.get("threads")),
+                new Integer(config.get("threads-per-host")),
+                new Integer(config.get("queue-size")));
+        metadataCache = new MetadataCache<>(
+                new Integer(config.get("metadata-cache-size")),
+                new Long(config.get("metadata-ttl")) * 1000,
+                new Long(config.get("metadata-failure-ttl")) * 1000);
+
         if (config.get("accept") != null) {
             acceptableTypes = Arrays.asList(config.get("accept").split(";"));
         } else {
@@ -173,14 +200,9 @@ public class Links extends Module {
             }
         }
 
-        // Initialize JDBC driver
-        try {
-            Class.forName(dbDriver).newInstance();
-        } catch (ClassNotFoundException | IllegalAccessException |
-                InstantiationException e) {
-            log.warn("Can't initialize JDBC driver '%s': %s",
-                    dbDriver, e.getLocalizedMessage());
-        }
+        // Connect to DB
+        pool = acquireConnectionPool();
+        dao = new KeyedDAO(pool, config, log);
 
         try {
             // Register commands provided by this module
@@ -196,41 +218,25 @@ public class Links extends Module {
         return acceptableTypes.contains(type.toLowerCase());
     }
 
-    private void connectToDB() throws Exception {
-        // Return if connection is opened already
-        try {
-            if (connection != null
-                    && !connection.isClosed()
-                    && (dbDriver.equalsIgnoreCase("org.sqlite.JDBC")
-                    || connection.isValid(5))) {
-                return;
+    private boolean isAcceptableContentType(String contentType) {
+        for (String type : contentType.split(";")) {
+            if (isAcceptable(type.trim())) {
+                return true;
             }
-        } catch (SQLException e) {
-            log.warn("JDBC connection isn't ready or can't check it", e);
-        }
-        // Connect
-        connection = DriverManager.getConnection(dbUrl, dbUsername, dbPassword);
-        // Prepare JDBC statements and create table if it doesn't exist
-        PreparedStatement createTable = connection.prepareStatement(config.get("create"));
-        createTable.execute();
-        createTable = connection.prepareStatement(config.get("create-tags"));
-        createTable.execute();
-        psAddRecord = connection.prepareStatement(config.get("insert"));
-        psAddTag = connection.prepareStatement(config.get("insert-tag"));
-        psSearchRecord = connection.prepareStatement(config.get("select"));
-        psDeleteRecord = connection.prepareStatement(config.get("delete"));
-        psDeleteTag = connection.prepareStatement(config.get("delete-tag"));
+        }
+        return false;
+    }
+
+    @Override
+    public MessageFilter getMessageFilter() {
+        return super.getMessageFilter().withURL();
     }
 
     @Override
     public boolean processMessage(Message msg) {
         String message = msg.body;
         // Get tags
-        ArrayList<String> messageTags = new ArrayList<>();
-        Matcher matcher = tagPattern.matcher(message);
-        while (matcher.find()) {
-            messageTags.add(matcher.group(1));
-        }
+        List<String> messageTags = msg.find(tagPattern, 1);
 
         // Check tag exclusions
         if (excludeTags) {
@@ -263,42 +269,80 @@ public class Links extends Module {
         }
 
         // Get URLs
-        matcher = urlPattern.matcher(message);
-        while (matcher.find()) {
+        for (Link link : msg.getLinks()) {
+            if (urlPattern != null
+                    && !urlPattern.matcher(link.getText()).find()) {
+                continue;
+            }
             try {
-                String originalURL = matcher.group();
-                URL url = new URL(originalURL);
-                log.info("I have got a new link " + url.toString());
+                String url = link.getURL();
+                log.info("I have got a new link " + url);
 
                 if (excludePattern != null) {
-                    Matcher excludeMatcher = excludePattern.matcher(url.toString());
+                    Matcher excludeMatcher = excludePattern.matcher(url);
                     if (excludeMatcher.matches()) {
-                        log.info("URL " + url.toString() + " excluded by pattern");
+                        log.info("URL " + url + " excluded by pattern");
                         continue;
                     }
                 }
 
-                ResultSet rs;
-                synchronized (dbDriver) {
-                    connectToDB();
-                    psSearchRecord.setString(1, url.toString());
-                    rs = psSearchRecord.executeQuery();
-                }
-                if (rs.next()) {
+                String[] dup = dao.search(url);
+                if (dup != null) {
                     bot.sendReply(msg, String.format(dupReplyFormat,
-                            url.toString(), rs.getString(1),
-                            rs.getString(2)));
+                            url, dup[0], dup[1]));
                     continue;
                 }
 
-                String comment = message.replace(originalURL, "{%URL%}");
+                String comment = message.replace(link.getText(), "{%URL%}");
+                Post post = new Post(msg, url, messageTags, comment, from);
 
-                LinksThread lt = new LinksThread(bot, this, url, messageTags,
-                        comment, from);
-                lt.start();
+                // Use a recent result or wait for a fetch of the same URL
+                MetadataCache.Metadata metadata;
+                boolean first = false;
+                synchronized (metadataCache) {
+                    metadata = metadataCache.get(url);
+                    if (metadata == null) {
+                        first = metadataCache.join(url, post);
+                    }
+                }
+                if (metadata != null) {
+                    log.info("Metadata of %s is taken from the cache", url);
+                    addPost(post, metadata);
+                    continue;
+                }
+                if (!first) {
+                    log.info("%s is being fetched already", url);
+                    continue;
+                }
+
+                // The fetch must be completed whatever happens, otherwise
+                // later posts of the URL would wait for it forever
+                boolean completed = false;
+                try {
+                    HttpFetcher.Request request = new HttpFetcher.Request(url)
+                            .proxy(proxy)
+                            .timeouts(new Integer(config.get("connect-timeout")),
+                                    new Integer(config.get("read-timeout")))
+                            .maxRedirects(new Integer(config.get("max-redirects")))
+                            .header("Accept-Encoding", "gzip, deflate");
+                    if (fetcher.fetch(this, request, new TitleHandler(url)) == null) {
+                        for (Post p : metadataCache.complete(url, null)) {
+                            log.warn("Fetch queue is full, %s is skipped", p.url);
+                        }
+                    }
+                    completed = true;
+                } finally {
+                    if (!completed) {
+                        MetadataCache.Metadata failure
+                                = new MetadataCache.Metadata("can't start fetching");
+                        for (Post p : metadataCache.complete(url, failure)) {
+                            addPost(p, failure);
+                        }
+                    }
+                }
 
             } catch (Exception e) {
-                log.warn("Can't create an URL from string", e);
+                log.warn("Can't process URL " + link.getURL(), e);
             }
         }
         return super.processMessage(msg);
@@ -310,20 +354,8 @@ public class Links extends Module {
         if (msg.command.equals("delete_link")) {
             String url = msg.commandArgs.trim();
             try {
-                ResultSet rs;
-                synchronized (dbDriver) {
-                    connectToDB();
-                    psSearchRecord.setString(1, url);
-                    rs = psSearchRecord.executeQuery();
-                }
-                if (rs.next()) {
-                    synchronized (dbDriver) {
-                        connectToDB();
-                        psDeleteRecord.setString(1, url);
-                        psDeleteRecord.executeUpdate();
-                        psDeleteTag.setString(1, url);
-                        psDeleteTag.executeUpdate();
-                    }
+                if (dao.search(url) != null) {
+                    dao.delete(url);
                     bot.sendReply(msg, "Link '" + url + "' has been deleted.");
                     return;
                 }
@@ -337,175 +369,489 @@ public class Links extends Module {
         }
     }
 
+    @Override
+    public ConnectionPool getConnectionPool() {
+        return pool;
+    }
+
     @Override
     public void onUnload() {
-        try {
-            connection.close();
-        } catch (SQLException e) {
-            log.warn("Can't close JDBC connection", e);
-        }
+        fetcher.release(this);
+        dao.close();
+        pool.release();
     }
 
     protected void addURL(String url, String title, String comment, String from,
-            ArrayList<String> tags) throws Exception {
-        synchronized (dbDriver) {
-            connectToDB();
-            psAddRecord.setString(1, url);
-            psAddRecord.setString(2, title);
-            psAddRecord.setString(3, comment);
-            psAddRecord.setString(4, from);
-            psAddRecord.executeUpdate();
-            for (String tag : tags) {
-                psAddTag.setString(1, url);
-                psAddTag.setString(2, tag);
-                psAddTag.executeUpdate();
+            List<String> tags) throws Exception {
+        dao.add(url, from, tags, title, comment, from);
+    }
+
+    /**
+     * Stores the posted link with the fetched title. The link is checked for
+     * duplicates again, it could be stored while it was fetched.
+     */
+    private void addPost(Post post, MetadataCache.Metadata metadata) {
+        if (metadata.error != null) {
+            log.warn("Can't read title from URL '%s': %s", post.url,
+                    metadata.error);
+            return;
+        }
+        if (metadata.contentType == null) {
+            log.warn("Can't get content type for URL " + post.url);
+            return;
+        }
+        if (!isAcceptableContentType(metadata.contentType)) {
+            log.info("Type of %s isn''t acceptable (%s).", post.url,
+                    metadata.contentType);
+            return;
+        }
+        try {
+            String[] dup = dao.search(post.url);
+            if (dup != null) {
+                bot.sendReply(post.msg, String.format(dupReplyFormat,
+                        post.url, dup[0], dup[1]));
+                return;
             }
+            addURL(post.url, metadata.title, post.comment, post.from, post.tags);
+        } catch (Exception e) {
+            log.err("Can't add URL '%s': %s", post.url, e.getLocalizedMessage());
         }
     }
 
-    private class LinksThread extends Thread {
+    /**
+     * Link from a message waiting for its metadata.
+     */
+    private static class Post {
 
-        private final Pattern titlePattern
-                = Pattern.compile("\\<title>(.*)\\</title>",
-                        Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
-        private final Pattern charsetPattern
-                = Pattern.compile("\\s*charset\\s*=\\s*([-_a-z0-9]+)\\s*",
-                        Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
-
-        private final Logger logger;
-        private final Links links;
-        private final URL url;
-        private final ArrayList<String> tags;
+        private final Message msg;
+        private final String url;
+        private final List<String> tags;
         private final String comment;
         private final String from;
 
-        public LinksThread(Bot bot, Links links, URL url,
-                ArrayList<String> tags, String comment, String from) {
-            this.logger = new Logger(bot.getLog(), "[Links.LinksDownloaderThread] ");
-            this.links = links;
+        public Post(Message msg, String url, List<String> tags, String comment,
+                String from) {
+            this.msg = msg;
             this.url = url;
             this.tags = tags;
             this.comment = comment;
             this.from = from;
-            this.setName(this.getClass().getName() + "(" + bot.getBotId()
-                    + ")(" + url + ")");
+        }
+    }
+
+    private class TitleHandler implements HttpFetcher.Handler {
 
+        private final Pattern charsetPattern
+                = Pattern.compile("\\s*charset\\s*=\\s*([-_a-z0-9]+)\\s*",
+                        Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+        private final String url;
+
+        public TitleHandler(String url) {
+            this.url = url;
         }
 
         @Override
-        public void run() {
-            HttpURLConnection connection;
-            try {
-                InetSocketAddress proxySocketAddress;
-                if (links.getConfigProperty("proxy.host") != null) {
-                    proxySocketAddress = new InetSocketAddress(
-                            links.getConfigProperty("proxy.host"),
-                            new Integer(links.getConfigProperty("proxy.port"))
-                    );
-
-                } else {
-                    proxySocketAddress = new InetSocketAddress(0);
-                }
-                Proxy proxy;
-                String proxyType = links.getConfigProperty("proxy.type");
-                if (proxyType == null
-                        || proxyType.equalsIgnoreCase("NONE")
-                        || proxyType.equalsIgnoreCase("DIRECT")) {
-                    proxy = Proxy.NO_PROXY;
-                } else {
-                    proxy = new Proxy(Proxy.Type.valueOf(proxyType),
-                            proxySocketAddress
-                    );
-                }
-                connection = (HttpURLConnection) url.openConnection(proxy);
-                connection.connect();
-            } catch (IOException | NumberFormatException e) {
-                logger.warn("Can't open connection to '%s': %s",
-                        url.toString(), e.getLocalizedMessage());
-                return;
+        public void completed(HttpFetcher.Response response) throws IOException {
+            MetadataCache.Metadata metadata = read(response);
+            for (Post post : metadataCache.complete(url, metadata)) {
+                addPost(post, metadata);
             }
-            String type = connection.getContentType();
+        }
+
+        private MetadataCache.Metadata read(HttpFetcher.Response response)
+                throws IOException {
+            if (response.getCode() / 100 != 2) {
+                throw new IOException("Server returned HTTP response code: "
+                        + response.getCode());
+            }
+            String type = response.getContentType();
             if (type == null) {
-                logger.warn("Can't get content type for URL " + url.toString());
-                connection.disconnect();
-                return;
+                return new MetadataCache.Metadata(null, null, null);
             }
-            logger.info("ContentType = %s", type);
+            log.info("ContentType = %s", type);
             String charset = "";
-            boolean acceptable = false;
-            String[] types = type.split(";");
-            for (String type1 : types) {
-                if (links.isAcceptable(type1)) {
-                    acceptable = true;
-                } else {
-                    Matcher m = charsetPattern.matcher(type1);
-                    if (m.matches()) {
-                        charset = m.group(1);
-                    }
+            for (String type1 : type.split(";")) {
+                Matcher m = charsetPattern.matcher(type1);
+                if (m.matches()) {
+                    charset = m.group(1);
                 }
             }
+            if (!isAcceptableContentType(type)) {
+                return new MetadataCache.Metadata(type, charset, null);
+            }
 
-            if (!acceptable) {
-                logger.info("Type of %s isn''t acceptable (%s).",
-                        url.toString(), type);
-                connection.disconnect();
-                return;
+            String title = titleExtractor.extract(response.getBody(), charset,
+                    response.getContentEncoding());
+            if (title == null) {
+                title = "";
+            }
+            log.info("Title = %s", title);
+            return new MetadataCache.Metadata(type, charset, title);
+        }
 
+        @Override
+        public void failed(IOException e) {
+            MetadataCache.Metadata metadata
+                    = new MetadataCache.Metadata(e.getLocalizedMessage());
+            for (Post post : metadataCache.complete(url, metadata)) {
+                addPost(post, metadata);
             }
+        }
+    }
 
-            String title = "";
+}
 
-            Charset cs;
-            if (charset == null || charset.isEmpty()) {
-                cs = Charset.defaultCharset();
-            } else {
-                cs = Charset.forName(charset);
-            }
+/**
+ * Reads the title of a HTML page from a stream. Bytes are scanned as they
+ * are read and reading stops at the end of the title, at the end of the
+ * head or after the specified number of bytes, so usually only the first
+ * few kilobytes of a page are read. Markup is ASCII in all charsets used on
+ * the web except UTF-16, so only the title is decoded, with the charset
+ * from the byte order mark, from the Content-Type header or from a meta
+ * tag, in that order, or with UTF-8.
+ */
+class TitleExtractor {
 
-            StringBuilder content = new StringBuilder();
+    private static final Pattern charsetPattern = Pattern.compile(
+            "charset\\s*=\\s*[\"']?\\s*([-_.:a-z0-9]+)",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern entityPattern = Pattern.compile(
+            "&(#[0-9]{1,7}|#x[0-9a-f]{1,6}|[a-z]+);",
+            Pattern.CASE_INSENSITIVE);
+    private static final Map<String, String> entities = new HashMap<>();
 
-            try {
-                BufferedReader br = new BufferedReader(
-                        new InputStreamReader(connection.getInputStream(), cs));
-//                String line;
-//                while ((line = br.readLine()) != null) {
-//                    Matcher m = titlePattern.matcher(line);
-//                    if (m.matches()) {
-//                        title = m.group(1);
-//                        break;
-//                    }
-//                }
-                int n = 0, totalRead = 0;
-                char[] buf = new char[1024];
-
-                // read until EOF or first 8192 characters
-                while (totalRead < 8192 && (n = br.read(buf, 0, buf.length)) != -1) {
-                    content.append(buf, 0, n);
-                    totalRead += n;
+    static {
+        entities.put("amp", "&");
+        entities.put("lt", "<");
+        entities.put("gt", ">");
+        entities.put("quot", "\"");
+        entities.put("apos", "'");
+        entities.put("nbsp", " ");
+    }
+
+    private final int maxBytes;
+
+    /**
+     * @param maxBytes maximum number of decompressed bytes to read
+     */
+    public TitleExtractor(int maxBytes) {
+        this.maxBytes = Math.max(maxBytes, 1024);
+    }
+
+    /**
+     * @param in the page
+     * @param charset charset from the Content-Type header or
+     * <code>null</code>
+     * @param encoding value of the Content-Encoding header or
+     * <code>null</code>
+     * @return the title or <code>null</code> if it isn't found
+     * @throws IOException if the page can't be read
+     */
+    public String extract(InputStream in, String charset, String encoding)
+            throws IOException {
+        if (encoding != null) {
+            encoding = encoding.trim().toLowerCase();
+            if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+                in = new GZIPInputStream(in);
+            } else if (encoding.equals("deflate")) {
+                in = inflate(in);
+            }
+        }
+        Charset cs = toCharset(charset);
+        byte[] buf = new byte[Math.min(maxBytes, 8192)];
+        int length = 0;
+        int pos = 0;
+        int titleStart = -1;
+        int n;
+        while (length < maxBytes
+                && (n = in.read(buf, length, Math.min(buf.length, maxBytes) - length)) != -1) {
+            length += n;
+            if (length == buf.length && length < maxBytes) {
+                buf = Arrays.copyOf(buf, Math.min(buf.length * 2, maxBytes));
+            }
+            if (pos == 0 && length >= 3 && (buf[0] & 0xff) == 0xef
+                    && (buf[1] & 0xff) == 0xbb && (buf[2] & 0xff) == 0xbf) {
+                cs = StandardCharsets.UTF_8;
+            }
+            while (pos < length) {
+                if (titleStart >= 0) {
+                    int end = indexOf(buf, pos, length, "</title");
+                    if (end >= 0) {
+                        return decode(buf, titleStart, end, cs);
+                    }
+                    // The end tag may be split between reads
+                    pos = Math.max(pos, length - 7);
+                    break;
+                }
+                int lt = indexOf(buf, pos, length, "<");
+                if (lt < 0) {
+                    pos = length;
+                    break;
+                }
+                if (startsWith(buf, lt, length, "<!--")) {
+                    int end = indexOf(buf, lt + 4, length, "-->");
+                    if (end < 0) {
+                        pos = lt;
+                        break;
+                    }
+                    pos = end + 3;
+                    continue;
+                }
+                int gt = indexOf(buf, lt + 1, length, ">");
+                if (gt < 0) {
+                    pos = lt;
+                    break;
+                }
+                String tag = tagName(buf, lt + 1, gt);
+                pos = gt + 1;
+                switch (tag) {
+                    case "title":
+                        titleStart = pos;
+                        break;
+                    case "meta":
+                        if (cs == null) {
+                            Matcher m = charsetPattern.matcher(
+                                    new String(buf, lt, gt - lt, StandardCharsets.ISO_8859_1));
+                            if (m.find()) {
+                                cs = toCharset(m.group(1));
+                            }
+                        }
+                        break;
+                    case "script":
+                    case "style":
+                        int end = indexOf(buf, pos, length, "</" + tag);
+                        if (end < 0) {
+                            // Skip it when the rest is read
+                            pos = lt;
+                            break;
+                        }
+                        pos = end;
+                        break;
+                    case "/head":
+                    case "body":
+                        return null;
+                }
+                if (pos == lt) {
+                    break;
                 }
-                br.close();
-            } catch (IOException e) {
-                logger.warn("Can't read title from URL '%s': %s",
-                        url.toString(), e.getLocalizedMessage());
             }
+        }
+        if (titleStart >= 0) {
+            // Truncated title
+            return decode(buf, titleStart, length, cs);
+        }
+        return null;
+    }
 
-            Matcher m = titlePattern.matcher(content);
-            if (m.find()) {
-                title = m.group(1).replaceAll("[\\s\\<>]+", " ").trim();
+    private static InputStream inflate(InputStream in) throws IOException {
+        // Some servers send raw deflate data without the zlib header
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        byte[] header = new byte[2];
+        int n = pushback.read(header);
+        if (n > 0) {
+            pushback.unread(header, 0, n);
+        }
+        boolean zlib = n == 2 && (header[0] & 0x0f) == 8
+                && (((header[0] & 0xff) << 8) | (header[1] & 0xff)) % 31 == 0;
+        return new InflaterInputStream(pushback, new Inflater(!zlib));
+    }
+
+    private static Charset toCharset(String name) {
+        if (name == null || name.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return Charset.forName(name.trim());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean startsWith(byte[] buf, int from, int to, String s) {
+        if (to - from < s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            int c = buf[from + i];
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
             }
+            if (c != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-            connection.disconnect();
+    // Case-insensitive search of a lower case ASCII string
+    private static int indexOf(byte[] buf, int from, int to, String s) {
+        for (int i = from; i <= to - s.length(); i++) {
+            if (startsWith(buf, i, to, s)) {
+                return i;
+            }
+        }
+        return -1;
+    }
 
-            logger.info("Title = %s", title);
+    private static String tagName(byte[] buf, int from, int to) {
+        StringBuilder name = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            char c = (char) buf[i];
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || (c == '/' && i == from)) {
+                name.append(Character.toLowerCase(c));
+            } else {
+                break;
+            }
+        }
+        return name.toString();
+    }
 
-            try {
-                links.addURL(url.toString(), title, comment, from, tags);
-            } catch (Exception e) {
-                logger.err("Can't add URL '%s': %s",
-                        url.toString(), e.getLocalizedMessage());
+    private static String decode(byte[] buf, int from, int to, Charset cs) {
+        String title = new String(buf, from, to - from,
+                cs == null ? StandardCharsets.UTF_8 : cs);
+        Matcher m = entityPattern.matcher(title);
+        StringBuffer result = new StringBuffer();
+        while (m.find()) {
+            String entity = m.group(1);
+            String replacement = null;
+            if (entity.startsWith("#")) {
+                try {
+                    int code = entity.length() > 1
+                            && (entity.charAt(1) == 'x' || entity.charAt(1) == 'X')
+                            ? Integer.parseInt(entity.substring(2), 16)
+                            : Integer.parseInt(entity.substring(1));
+                    replacement = new String(Character.toChars(code));
+                } catch (IllegalArgumentException e) {
+                    // Invalid code point
+                }
+            } else {
+                replacement = entities.get(entity.toLowerCase());
+            }
+            m.appendReplacement(result, Matcher.quoteReplacement(
+                    replacement == null ? m.group() : replacement));
+        }
+        m.appendTail(result);
+        return result.toString().replaceAll("[\\s\\<>]+", " ").trim();
+    }
+}
+
+/**
+ * Recent results of fetching links and fetches in progress, by canonical
+ * URLs. Titles are kept for <code>ttl</code> milliseconds, failures for
+ * <code>failureTTL</code> milliseconds, so a link posted again isn't fetched
+ * again soon. Posts of a link which is being fetched join the fetch and get
+ * its result, so one URL is fetched once however many times it's posted.
+ *
+ * @param <W> type of posts waiting for results
+ */
+class MetadataCache<W> {
+
+    /**
+     * Result of a fetch: type, charset and title of a page, or an error.
+     */
+    static class Metadata {
+
+        final String contentType;
+        final String charset;
+        final String title;
+        final String error;
+        private long expires;
+
+        /**
+         * @param title <code>null</code> if the page hasn't been read
+         */
+        public Metadata(String contentType, String charset, String title) {
+            this.contentType = contentType;
+            this.charset = charset;
+            this.title = title;
+            this.error = null;
+        }
+
+        public Metadata(String error) {
+            this.contentType = null;
+            this.charset = null;
+            this.title = null;
+            this.error = error == null ? "unknown error" : error;
+        }
+    }
+
+    private final Map<String, Metadata> results;
+    private final Map<String, List<W>> fetches;
+    private final long ttl;
+    private final long failureTTL;
+
+    /**
+     * @param size maximum number of kept results
+     * @param ttl time to keep titles in milliseconds, 0 disables caching
+     * @param failureTTL time to keep failures in milliseconds, 0 disables
+     * caching
+     */
+    public MetadataCache(final int size, long ttl, long failureTTL) {
+        results = new LinkedHashMap<String, Metadata>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Metadata> eldest) {
+                return size() > size
+                        || eldest.getValue().expires <= System.currentTimeMillis();
             }
+        };
+        fetches = new HashMap<>();
+        this.ttl = ttl;
+        this.failureTTL = failureTTL;
+    }
+
+    /**
+     * @param key the key
+     * @return unexpired result or <code>null</code>
+     */
+    public synchronized Metadata get(String key) {
+        Metadata metadata = results.get(key);
+        if (metadata != null
+                && metadata.expires <= System.currentTimeMillis()) {
+            results.remove(key);
+            return null;
         }
+        return metadata;
+    }
 
+    /**
+     * Adds the post to the fetch of the key.
+     *
+     * @param key the key
+     * @param waiter the post
+     * @return <code>true</code> if the key isn't being fetched yet, then the
+     * caller must fetch it and call {@link #complete(String, Metadata)}
+     */
+    public synchronized boolean join(String key, W waiter) {
+        List<W> waiters = fetches.get(key);
+        if (waiters != null) {
+            waiters.add(waiter);
+            return false;
+        }
+        waiters = new ArrayList<>();
+        waiters.add(waiter);
+        fetches.put(key, waiters);
+        return true;
     }
 
+    /**
+     * Ends the fetch of the key and keeps its result.
+     *
+     * @param key the key
+     * @param metadata the result or <code>null</code> if the key hasn't been
+     * fetched
+     * @return posts which have joined the fetch
+     */
+    public synchronized List<W> complete(String key, Metadata metadata) {
+        if (metadata != null) {
+            long time = metadata.error == null ? ttl : failureTTL;
+            if (time > 0) {
+                metadata.expires = System.currentTimeMillis() + time;
+                results.put(key, metadata);
+            }
+        }
+        List<W> waiters = fetches.remove(key);
+        return waiters == null ? new ArrayList<W>() : waiters;
+    }
 }
@@ -23,11 +23,30 @@
 package com.devti.JavaXMPPBot.modules;
 
 import com.devti.JavaXMPPBot.Bot;
+import com.devti.JavaXMPPBot.Logger;
 import com.devti.JavaXMPPBot.Message;
+import com.devti.JavaXMPPBot.MessageFilter;
 import com.devti.JavaXMPPBot.Module;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 public class RandomFile extends Module {
 
@@ -37,13 +56,19 @@ public class RandomFile extends Module {
         defaultConfig.put("key-message", ".*show me a file");
         defaultConfig.put("reply-format", "http://example.com/files/%s");
         defaultConfig.put("path", null);
+        defaultConfig.put("extensions", null);
+        defaultConfig.put("max-age", "0");
     }
 
+    private final Pattern keyPattern;
     private File dir;
+    private FileIndex index;
 
     public RandomFile(Bot bot, Map<String, String> cfg) {
         super(bot, cfg, defaultConfig);
 
+        keyPattern = Pattern.compile(config.get("key-message"));
+
         // Get directory
         if (config.get("path") != null) {
             dir = new File(config.get("path"));
@@ -54,19 +79,258 @@ public class RandomFile extends Module {
         } else {
             dir = null;
         }
+
+        if (dir != null) {
+            Set<String> extensions = null;
+            if (config.get("extensions") != null) {
+                extensions = new HashSet<>();
+                for (String extension : config.get("extensions").split(";")) {
+                    extension = extension.trim().toLowerCase();
+                    if (extension.startsWith(".")) {
+                        extension = extension.substring(1);
+                    }
+                    if (!extension.isEmpty()) {
+                        extensions.add(extension);
+                    }
+                }
+            }
+            index = new FileIndex(dir.toPath(), extensions,
+                    TimeUnit.DAYS.toMillis(new Long(config.get("max-age"))), log);
+            index.start(FileIndex.class.getName() + "(" + bot.getBotId() + ")");
+        }
+    }
+
+    @Override
+    public MessageFilter getMessageFilter() {
+        if (dir == null) {
+            return MessageFilter.NONE;
+        }
+        return super.getMessageFilter().forMe();
     }
 
     @Override
     public boolean processMessage(Message msg) {
-        if (dir == null || !msg.isForMe
-                || !msg.body.matches(config.get("key-message"))) {
+        if (!keyPattern.matcher(msg.body).matches()) {
+            return super.processMessage(msg);
+        }
+        String file = index.getRandom();
+        if (file == null) {
+            log.info("There are no files in %s", dir);
             return super.processMessage(msg);
         }
-        String[] files = dir.list();
-        String file = files[new Long(Math.round(Math.random()
-                * (files.length - 1))).intValue()];
         bot.sendReply(msg, String.format(config.get("reply-format"), file));
         return true;
     }
 
+    @Override
+    public void onUnload() {
+        if (index != null) {
+            index.close();
+        }
+    }
+
+}
+
+/**
+ * Names of files in a directory, kept current with a {@link WatchService}.
+ * Files can be filtered by extensions and by age; old files are dropped from
+ * the index when they are picked.
+ */
+class FileIndex implements Runnable {
+
+    private final Path dir;
+    private final Set<String> extensions;
+    private final long maxAge;
+    private final Logger log;
+    private final Random random;
+    private final Map<String, Integer> positions;
+    private String[] names;
+    private long[] modified;
+    private int size;
+    private WatchService watcher;
+
+    /**
+     * @param dir the directory
+     * @param extensions lower case extensions of indexed files or
+     * <code>null</code> for all files
+     * @param maxAge maximum age of files in milliseconds, 0 means no limit
+     * @param log logger
+     */
+    public FileIndex(Path dir, Set<String> extensions, long maxAge, Logger log) {
+        this.dir = dir;
+        this.extensions = extensions;
+        this.maxAge = maxAge;
+        this.log = log;
+        random = new Random();
+        positions = new HashMap<>();
+        names = new String[16];
+        modified = new long[16];
+    }
+
+    /**
+     * Indexes the directory and starts watching it.
+     *
+     * @param threadName name of the watching thread
+     */
+    public void start(String threadName) {
+        // Register before scanning to not miss files created in between
+        try {
+            watcher = dir.getFileSystem().newWatchService();
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("Can't watch %s, new files won't be found: %s", dir,
+                    e.getLocalizedMessage());
+            watcher = null;
+        }
+        scan();
+        if (watcher != null) {
+            Thread thread = new Thread(this, threadName);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                log.warn("Can't stop watching %s: %s", dir,
+                        e.getLocalizedMessage());
+            }
+        }
+    }
+
+    private void scan() {
+        Map<String, Long> files = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (accepts(name)) {
+                    BasicFileAttributes attributes = Files.readAttributes(path,
+                            BasicFileAttributes.class);
+                    if (attributes.isRegularFile()) {
+                        files.put(name, attributes.lastModifiedTime().toMillis());
+                    }
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            log.warn("Can't list files in %s: %s", dir, e.getLocalizedMessage());
+        }
+        synchronized (this) {
+            positions.clear();
+            Arrays.fill(names, 0, size, null);
+            size = 0;
+            for (Map.Entry<String, Long> file : files.entrySet()) {
+                put(file.getKey(), file.getValue());
+            }
+        }
+        log.info("%d files have been found in %s", files.size(), dir);
+    }
+
+    private boolean accepts(String name) {
+        if (extensions == null) {
+            return true;
+        }
+        int dot = name.lastIndexOf('.');
+        return dot >= 0
+                && extensions.contains(name.substring(dot + 1).toLowerCase());
+    }
+
+    private void update(String name) {
+        if (!accepts(name)) {
+            return;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(
+                    dir.resolve(name), BasicFileAttributes.class);
+            if (attributes.isRegularFile()) {
+                synchronized (this) {
+                    put(name, attributes.lastModifiedTime().toMillis());
+                }
+                return;
+            }
+        } catch (IOException e) {
+            // The file has been deleted
+        }
+        synchronized (this) {
+            remove(name);
+        }
+    }
+
+    private void put(String name, long time) {
+        Integer position = positions.get(name);
+        if (position == null) {
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                modified = Arrays.copyOf(modified, size * 2);
+            }
+            position = size++;
+            names[position] = name;
+            positions.put(name, position);
+        }
+        modified[position] = time;
+    }
+
+    private void remove(String name) {
+        Integer position = positions.remove(name);
+        if (position == null) {
+            return;
+        }
+        // Move the last file to the freed place
+        int last = --size;
+        if (position != last) {
+            names[position] = names[last];
+            modified[position] = modified[last];
+            positions.put(names[position], position);
+        }
+        names[last] = null;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    scan();
+                } else {
+                    update(((Path) event.context()).toString());
+                }
+            }
+            if (!key.reset()) {
+                log.warn("%s isn't watched anymore", dir);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return name of a random file or <code>null</code> if there are no
+     * files
+     */
+    public synchronized String getRandom() {
+        long now = System.currentTimeMillis();
+        while (size > 0) {
+            int i = random.nextInt(size);
+            if (maxAge > 0 && now - modified[i] > maxAge) {
+                // It's added again if it's modified
+                remove(names[i]);
+                continue;
+            }
+            if (watcher == null && !Files.isRegularFile(dir.resolve(names[i]))) {
+                remove(names[i]);
+                continue;
+            }
+            return names[i];
+        }
+        return null;
+    }
 }
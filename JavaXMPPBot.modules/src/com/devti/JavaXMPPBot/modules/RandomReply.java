@@ -23,19 +23,24 @@
 package com.devti.JavaXMPPBot.modules;
 
 import com.devti.JavaXMPPBot.Message;
+import com.devti.JavaXMPPBot.MessageFilter;
 import com.devti.JavaXMPPBot.Module;
 import com.devti.JavaXMPPBot.Bot;
 import com.devti.JavaXMPPBot.Command;
-import java.sql.Connection;
-import java.sql.DriverManager;
+import com.devti.JavaXMPPBot.ConnectionPool;
+import com.devti.JavaXMPPBot.DatabaseModule;
+import com.devti.JavaXMPPBot.Logger;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.io.File;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 
-public class RandomReply extends Module {
+public class RandomReply extends Module implements DatabaseModule {
 
     static private final Map<String, String> defaultConfig = new HashMap<>();
 
@@ -44,47 +49,25 @@ public class RandomReply extends Module {
         defaultConfig.put("db-url", "jdbc:sqlite:" + System.getProperty("user.home") + File.separator + "JavaXMPPBot" + File.separator + "random_reply.db");
         defaultConfig.put("db-username", null);
         defaultConfig.put("db-password", null);
+        defaultConfig.put("db-pool-size", "4");
         defaultConfig.put("create", "CREATE TABLE IF NOT EXISTS `javaxmppbot_random_reply` (`message` TEXT)");
         defaultConfig.put("insert", "INSERT INTO `javaxmppbot_random_reply` (`message`) VALUES (?)");
         defaultConfig.put("delete", "DELETE FROM `javaxmppbot_random_reply` WHERE `message` = ?");
         defaultConfig.put("select", "SELECT `message` FROM `javaxmppbot_random_reply` ORDER BY random() LIMIT 1");
+        defaultConfig.put("select-all", "SELECT `message` FROM `javaxmppbot_random_reply`");
+        defaultConfig.put("weighted", "yes");
+        defaultConfig.put("no-repeat", "0");
     }
 
-    private Connection connection;
-    private PreparedStatement create;
-    private PreparedStatement insert;
-    private PreparedStatement select;
-    private PreparedStatement delete;
-
-    private final String dbUrl;
-    private final String dbDriver;
-    private final String dbUsername;
-    private final String dbPassword;
+    private final ConnectionPool pool;
+    private final RandomReplyDAO dao;
 
     public RandomReply(Bot bot, Map<String, String> cfg) {
         super(bot, cfg, defaultConfig);
 
-        // Get properties
-        dbDriver = config.get("db-driver");
-        dbUrl = config.get("db-url");
-        dbUsername = config.get("db-username");
-        dbPassword = config.get("db-password");
-
-        // Initialize JDBC driver
-        try {
-            Class.forName(dbDriver).newInstance();
-        } catch (ClassNotFoundException | InstantiationException |
-                IllegalAccessException e) {
-            log.warn("Can't initialize JDBC driver '%s': %s",
-                    dbDriver, e.getLocalizedMessage());
-        }
-
         // Connect to DB
-        try {
-            connectToDB();
-        } catch (Exception e) {
-            log.warn("Can't prepare DB connection", e);
-        }
+        pool = acquireConnectionPool();
+        dao = new RandomReplyDAO(pool, config, log);
 
         // Register commands provided by this module
         try {
@@ -99,38 +82,12 @@ public class RandomReply extends Module {
         }
     }
 
-    private void connectToDB() throws Exception {
-        // Return if connection is opened already
-        try {
-            if (connection != null
-                    && !connection.isClosed()
-                    && (dbDriver.equalsIgnoreCase("org.sqlite.JDBC")
-                    || connection.isValid(5))) {
-                return;
-            }
-        } catch (SQLException e) {
-            log.warn("JDBC connection isn't ready or can't check it", e);
-        }
-        // Connect
-        connection = DriverManager.getConnection(dbUrl, dbUsername, dbPassword);
-        // Prepare JDBC statements and create table if it doesn't exist
-        create = connection.prepareStatement(config.get("create"));
-        create.execute();
-        insert = connection.prepareStatement(config.get("insert"));
-        delete = connection.prepareStatement(config.get("delete"));
-        select = connection.prepareStatement(config.get("select"));
-    }
-
     @Override
     public void processCommand(Message msg) {
         switch (msg.command) {
             case "reply_add":
                 try {
-                    synchronized (dbDriver) {
-                        connectToDB();
-                        insert.setString(1, msg.commandArgs);
-                        insert.executeUpdate();
-                    }
+                    dao.add(msg.commandArgs);
                     bot.sendReply(msg, "New random reply has been added.");
                 } catch (Exception e) {
                     log.warn("Can't execute JDBC statement", e);
@@ -138,11 +95,7 @@ public class RandomReply extends Module {
                 break;
             case "reply_delete":
                 try {
-                    synchronized (dbDriver) {
-                        connectToDB();
-                        delete.setString(1, msg.commandArgs);
-                        delete.executeUpdate();
-                    }
+                    dao.delete(msg.commandArgs);
                     bot.sendReply(msg, "Random reply has been deleted.");
                 } catch (Exception e) {
                     log.warn("Can't execute JDBC statement", e);
@@ -151,39 +104,287 @@ public class RandomReply extends Module {
         }
     }
 
+    @Override
+    public MessageFilter getMessageFilter() {
+        return super.getMessageFilter().types(Message.Type.normal,
+                Message.Type.chat, Message.Type.groupchat).forMe();
+    }
+
     @Override
     public boolean processMessage(Message msg) {
-        if ((msg.type == Message.Type.normal)
-                || (msg.type == Message.Type.chat)
-                || (msg.type == Message.Type.groupchat)) {
-            if ((msg.type != Message.Type.groupchat)
-                    || msg.body.startsWith(bot.getNickname(msg.room))) {
-                String reply = null;
-                try {
-                    synchronized (dbDriver) {
-                        connectToDB();
-                        ResultSet rs = select.executeQuery();
-                        if (rs.next()) {
-                            reply = rs.getString(1);
-                        }
-                    }
-                    if (reply != null) {
-                        bot.sendReply(msg, reply);
-                    }
-                } catch (Exception e) {
-                    log.warn("Can't execute JDBC statement", e);
-                }
+        try {
+            String reply = dao.getRandom();
+            if (reply != null) {
+                bot.sendReply(msg, reply);
             }
+        } catch (Exception e) {
+            log.warn("Can't execute JDBC statement", e);
         }
         return super.processMessage(msg);
     }
 
+    @Override
+    public ConnectionPool getConnectionPool() {
+        return pool;
+    }
+
     @Override
     public void onUnload() {
-        try {
-            connection.close();
-        } catch (SQLException e) {
-            log.warn("Can't close JDBC connection", e);
+        pool.release();
+    }
+}
+
+/**
+ * Access to the table of replies. Replies are loaded into memory with
+ * "select-all" and picked there; "select" is used only if they can't be
+ * loaded.
+ */
+class RandomReplyDAO {
+
+    private final ConnectionPool pool;
+    private final Map<String, String> config;
+    private final Logger log;
+    private final ReplySet replies;
+    private volatile boolean loaded;
+
+    public RandomReplyDAO(ConnectionPool pool, Map<String, String> config,
+            Logger log) {
+        this.pool = pool;
+        this.config = config;
+        this.log = log;
+        pool.migrate(config.get("create"));
+        replies = new ReplySet(config.get("weighted").equalsIgnoreCase("yes"),
+                new Integer(config.get("no-repeat")));
+        load();
+    }
+
+    private void load() {
+        if (config.get("select-all") == null) {
+            return;
+        }
+        synchronized (replies) {
+            if (loaded) {
+                return;
+            }
+            try (ConnectionPool.Session db = pool.getConnection();
+                    ResultSet rs = db.prepare(config.get("select-all")).executeQuery()) {
+                replies.clear();
+                while (rs.next()) {
+                    replies.add(rs.getString(1));
+                }
+                loaded = true;
+                log.info("%d replies have been loaded", replies.size());
+            } catch (SQLException e) {
+                log.warn("Can't load replies", e);
+            }
+        }
+    }
+
+    public void add(String message) throws SQLException {
+        try (ConnectionPool.Session db = pool.getConnection()) {
+            PreparedStatement insert = db.prepare(config.get("insert"));
+            insert.setString(1, message);
+            insert.executeUpdate();
+        }
+        replies.add(message);
+    }
+
+    public void delete(String message) throws SQLException {
+        try (ConnectionPool.Session db = pool.getConnection()) {
+            PreparedStatement delete = db.prepare(config.get("delete"));
+            delete.setString(1, message);
+            delete.executeUpdate();
+        }
+        replies.remove(message);
+    }
+
+    public String getRandom() throws SQLException {
+        if (!loaded) {
+            load();
+        }
+        if (loaded) {
+            return replies.getRandom();
+        }
+        try (ConnectionPool.Session db = pool.getConnection();
+                ResultSet rs = db.prepare(config.get("select")).executeQuery()) {
+            if (rs.next()) {
+                return rs.getString(1);
+            }
+        }
+        return null;
+    }
+}
+
+/**
+ * Set of replies for picking a random one without scanning them. Every reply
+ * has a weight, the number of its rows in the table; a weighted pick finds
+ * the reply by a random number below the total weight in a Fenwick tree of
+ * weights, in logarithmic time. The last picked replies are moved to the
+ * tail of the array, which isn't picked from, and are moved back when they
+ * may be repeated. Replies are removed by moving the last reply into the
+ * freed place.
+ */
+class ReplySet {
+
+    private final boolean weighted;
+    private final int noRepeat;
+    private final Random random;
+    private final Map<String, Integer> positions;
+    private final ArrayDeque<String> recent;
+    private String[] replies;
+    private int[] weights;
+    // Fenwick tree of weights, tree[i] is a sum of weights ending at i - 1
+    private int[] tree;
+    private int size;
+    // Replies at positions from active to size are the recent ones
+    private int active;
+
+    /**
+     * @param weighted pick replies with probability proportional to their
+     * weights
+     * @param noRepeat number of last picked replies which aren't picked again
+     */
+    public ReplySet(boolean weighted, int noRepeat) {
+        this.weighted = weighted;
+        this.noRepeat = Math.max(noRepeat, 0);
+        random = new Random();
+        positions = new HashMap<>();
+        recent = new ArrayDeque<>();
+        replies = new String[16];
+        weights = new int[16];
+        tree = new int[17];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        positions.clear();
+        recent.clear();
+        Arrays.fill(replies, 0, size, null);
+        Arrays.fill(weights, 0, size, 0);
+        Arrays.fill(tree, 0);
+        size = 0;
+        active = 0;
+    }
+
+    public synchronized void add(String reply) {
+        Integer position = positions.get(reply);
+        if (position == null) {
+            if (size == replies.length) {
+                replies = Arrays.copyOf(replies, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+                rebuildTree();
+            }
+            position = size++;
+            replies[position] = reply;
+            weights[position] = 0;
+            positions.put(reply, position);
+            // New replies are available at once
+            swap(position, active);
+            position = active++;
+        }
+        weights[position]++;
+        addWeight(position, 1);
+    }
+
+    public synchronized void remove(String reply) {
+        Integer position = positions.get(reply);
+        if (position == null) {
+            return;
+        }
+        if (position < active) {
+            swap(position, --active);
+            position = active;
+        } else {
+            recent.remove(reply);
+        }
+        swap(position, --size);
+        addWeight(size, -weights[size]);
+        weights[size] = 0;
+        replies[size] = null;
+        positions.remove(reply);
+    }
+
+    /**
+     * @return random reply or <code>null</code> if there are no replies
+     */
+    public synchronized String getRandom() {
+        if (size == 0) {
+            return null;
+        }
+        // At least one reply must remain available
+        while (recent.size() > Math.min(noRepeat, size - 1)) {
+            swap(positions.get(recent.poll()), active++);
+        }
+        int i = weighted ? find(random.nextInt(sum(active)))
+                : random.nextInt(active);
+        String reply = replies[i];
+        if (noRepeat > 0) {
+            recent.add(reply);
+            swap(i, --active);
+        }
+        return reply;
+    }
+
+    private void swap(int i, int j) {
+        if (i == j) {
+            return;
+        }
+        String reply = replies[i];
+        int weight = weights[i];
+        replies[i] = replies[j];
+        weights[i] = weights[j];
+        replies[j] = reply;
+        weights[j] = weight;
+        positions.put(replies[i], i);
+        positions.put(replies[j], j);
+        addWeight(i, weights[i] - weight);
+        addWeight(j, weight - weights[i]);
+    }
+
+    private void rebuildTree() {
+        tree = new int[replies.length + 1];
+        for (int i = 0; i < size; i++) {
+            addWeight(i, weights[i]);
+        }
+    }
+
+    private void addWeight(int position, int delta) {
+        if (delta == 0) {
+            return;
+        }
+        for (int i = position + 1; i < tree.length; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * @return sum of weights of replies before the position
+     */
+    private int sum(int position) {
+        int sum = 0;
+        for (int i = position; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    /**
+     * @return position of the reply which covers the value in the cumulative
+     * weights
+     */
+    private int find(int value) {
+        int position = 0;
+        for (int step = Integer.highestOneBit(tree.length - 1); step > 0;
+                step >>= 1) {
+            int next = position + step;
+            if (next < tree.length && tree[next] <= value) {
+                position = next;
+                value -= tree[next];
+            }
         }
+        return position;
     }
 }
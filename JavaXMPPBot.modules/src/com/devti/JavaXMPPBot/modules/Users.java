@@ -24,20 +24,34 @@ package com.devti.JavaXMPPBot.modules;
 
 import com.devti.JavaXMPPBot.Bot;
 import com.devti.JavaXMPPBot.Command;
+import com.devti.JavaXMPPBot.ConnectionPool;
+import com.devti.JavaXMPPBot.DatabaseModule;
+import com.devti.JavaXMPPBot.Logger;
 import com.devti.JavaXMPPBot.Message;
 import com.devti.JavaXMPPBot.Module;
 import java.io.File;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 
-public class Users extends Module {
+public class Users extends Module implements DatabaseModule {
 
     static private final Map<String, String> defaultConfig = new HashMap<>();
 
@@ -46,57 +60,35 @@ public class Users extends Module {
         defaultConfig.put("db-url", "jdbc:sqlite:" + System.getProperty("user.home") + File.separator + "JavaXMPPBot" + File.separator + "users.db");
         defaultConfig.put("db-username", null);
         defaultConfig.put("db-password", null);
+        defaultConfig.put("db-pool-size", "4");
+        defaultConfig.put("password-iterations", "10000");
+        defaultConfig.put("hash-threads", "2");
+        defaultConfig.put("hash-queue-size", "50");
         defaultConfig.put("create", "CREATE TABLE IF NOT EXISTS `javaxmppbot_users` (`jid` TEXT, `nickname` TEXT, `password` TEXT, `approved` TINYINT DEFAULT '0')");
+        defaultConfig.put("create-indexes", "CREATE INDEX IF NOT EXISTS `javaxmppbot_users_jid` ON `javaxmppbot_users` (`jid`);CREATE INDEX IF NOT EXISTS `javaxmppbot_users_nickname` ON `javaxmppbot_users` (`nickname`)");
         defaultConfig.put("insert", "INSERT INTO `javaxmppbot_users` (`jid`, `nickname`, `password`) VALUES (?, ?, ?)");
-        defaultConfig.put("select", "SELECT `password` FROM `javaxmppbot_users` WHERE `jid`=? LIMIT 1");
-        defaultConfig.put("select-by-nick", "SELECT `jid` FROM `javaxmppbot_users` WHERE `nickname`=? LIMIT 1");
+        defaultConfig.put("select-all", "SELECT `jid`, `nickname`, `password`, `approved` FROM `javaxmppbot_users`");
         defaultConfig.put("update", "UPDATE `javaxmppbot_users` SET `password`=? WHERE `jid`=?");
         defaultConfig.put("update-nick", "UPDATE `javaxmppbot_users` SET `nickname`=? WHERE `jid`=?");
-        defaultConfig.put("select-unapproved", "SELECT `jid`, `nickname` FROM `javaxmppbot_users` WHERE `approved`=0");
         defaultConfig.put("update-approve", "UPDATE `javaxmppbot_users` SET `approved`=1 WHERE `jid`=? AND `approved`=0");
         defaultConfig.put("update-approve-all", "UPDATE `javaxmppbot_users` SET `approved`=1 WHERE `approved`=0");
     }
 
-    private Connection connection;
-    private PreparedStatement psCreate;
-    private PreparedStatement psInsert;
-    private PreparedStatement psSelect;
-    private PreparedStatement psSelectByNick;
-    private PreparedStatement psUpdate;
-    private PreparedStatement psUpdateNick;
-    private PreparedStatement psSelectUnapproved;
-    private PreparedStatement psApprove;
-    private PreparedStatement psApproveAll;
-
-    private final String dbUrl;
-    private final String dbDriver;
-    private final String dbUsername;
-    private final String dbPassword;
+    private final ConnectionPool pool;
+    private final UsersDAO dao;
+    private final PasswordHasher hasher;
 
     public Users(Bot bot, Map<String, String> cfg) {
         super(bot, cfg, defaultConfig);
 
-        // Get properties
-        dbDriver = config.get("db-driver");
-        dbUrl = config.get("db-url");
-        dbUsername = config.get("db-username");
-        dbPassword = config.get("db-password");
-
-        // Initialize JDBC driver
-        try {
-            Class.forName(dbDriver).newInstance();
-        } catch (ClassNotFoundException | InstantiationException |
-                IllegalAccessException e) {
-            log.warn("Can't initialize JDBC driver '%s': %s",
-                    dbDriver, e.getLocalizedMessage());
-        }
+        hasher = new PasswordHasher(bot.getBotId(),
+                new Integer(config.get("password-iterations")),
+                new Integer(config.get("hash-threads")),
+                new Integer(config.get("hash-queue-size")));
 
         // Connect to DB
-        try {
-            connectToDB();
-        } catch (Exception e) {
-            log.warn("Can't prepare DB connection", e);
-        };
+        pool = acquireConnectionPool();
+        dao = new UsersDAO(pool, config, log);
 
         // Register commands provided by this module
         try {
@@ -120,35 +112,8 @@ public class Users extends Module {
         }
     }
 
-    private void connectToDB() throws Exception {
-        // Return if connection is opened already
-        try {
-            if (connection != null
-                    && !connection.isClosed()
-                    && (dbDriver.equalsIgnoreCase("org.sqlite.JDBC")
-                    || connection.isValid(5))) {
-                return;
-            }
-        } catch (SQLException e) {
-            log.warn("JDBC connection isn't ready or can't check it", e);
-        }
-        // Connect
-        connection = DriverManager.getConnection(dbUrl, dbUsername, dbPassword);
-        // Prepare JDBC statements and create table if it doesn't exist
-        psCreate = connection.prepareStatement(config.get("create"));
-        psCreate.execute();
-        psInsert = connection.prepareStatement(config.get("insert"));
-        psSelect = connection.prepareStatement(config.get("select"));
-        psSelectByNick = connection.prepareStatement(config.get("select-by-nick"));
-        psUpdate = connection.prepareStatement(config.get("update"));
-        psUpdateNick = connection.prepareStatement(config.get("update-nick"));
-        psSelectUnapproved = connection.prepareStatement(config.get("select-unapproved"));
-        psApprove = connection.prepareStatement(config.get("update-approve"));
-        psApproveAll = connection.prepareStatement(config.get("update-approve-all"));
-    }
-
     @Override
-    public void processCommand(Message msg) {
+    public void processCommand(final Message msg) {
         if (msg.command.equals("register")) {
             if (msg.fromJID == null) {
                 bot.sendReply(msg,
@@ -161,55 +126,25 @@ public class Users extends Module {
                         "Registration error: password can't be empty.");
                 return;
             }
-            String password = null;
-            try {
-                synchronized (dbDriver) {
-                    connectToDB();
-                    psSelect.setString(1, msg.fromJID);
-                    ResultSet rs = psSelect.executeQuery();
-                    if (rs.next()) {
-                        password = rs.getString(1);
-                    }
-                }
-            } catch (Exception e) {
-                log.warn("Can't execute JDBC statement", e);
-            }
-            String md5sum = null;
-            try {
-                MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-                md5sum = HexCodec.bytesToHex(
-                        messageDigest.digest(msg.commandArgs.getBytes()));
-            } catch (NoSuchAlgorithmException e) {
-                log.warn("Can't get MD5 digest for password", e);
-            }
-            if (password == null) {
-                try {
-                    synchronized (dbDriver) {
-                        connectToDB();
-                        psInsert.setString(1, msg.fromJID);
-                        psInsert.setString(2, msg.fromJID);
-                        psInsert.setString(3, md5sum);
-                        psInsert.executeUpdate();
+            // Hashing is slow by design, so it's done out of the dispatcher
+            final char[] password = msg.commandArgs.toCharArray();
+            Future<?> future = hasher.submit(new Runnable() {
+                @Override
+                public void run() {
+                    // Nobody reads the future, so errors are reported here
+                    try {
+                        register(msg, password);
+                    } catch (RuntimeException e) {
+                        log.warn("Can't register user", e);
+                        bot.sendReply(msg,
+                                "Registration error: can't save your password.");
                     }
-                } catch (Exception e) {
-                    log.warn("Can't execute JDBC statement", e);
                 }
-                bot.sendReply(msg, "User " + msg.fromJID
-                        + " registered successfully.");
-                return;
-            }
-            try {
-                synchronized (dbDriver) {
-                    connectToDB();
-                    psUpdate.setString(1, md5sum);
-                    psUpdate.setString(2, msg.fromJID);
-                    psUpdate.executeUpdate();
-                }
-            } catch (Exception e) {
-                log.warn("Can't execute JDBC statement", e);
+            });
+            if (future == null) {
+                bot.sendReply(msg, "Registration error: too many "
+                        + "registrations at once, try again later.");
             }
-            bot.sendReply(msg, "Password for user " + msg.fromJID
-                    + " updated successfully.");
             return;
         }
         if (msg.command.equals("set_nick")) {
@@ -221,47 +156,19 @@ public class Users extends Module {
                 bot.sendReply(msg, "Error: nick can't be empty.");
                 return;
             }
-            String password = null;
+            String jid;
             try {
-                synchronized (dbDriver) {
-                    connectToDB();
-                    psSelect.setString(1, msg.fromJID);
-                    ResultSet rs = psSelect.executeQuery();
-                    if (rs.next()) {
-                        password = rs.getString(1);
-                    }
+                if (!dao.isRegistered(msg.fromJID)) {
+                    bot.sendReply(msg, "Error: you aren't registered.");
+                    return;
                 }
+                jid = dao.setNick(msg.fromJID, msg.commandArgs);
             } catch (Exception e) {
                 log.warn("Can't execute JDBC statement", e);
-            }
-            if (password == null) {
-                bot.sendReply(msg, "Error: you aren't registered.");
+                bot.sendReply(msg, "Error: can't change your nick.");
                 return;
             }
-            String jid = null;
-            try {
-                synchronized (dbDriver) {
-                    connectToDB();
-                    psSelectByNick.setString(1, msg.commandArgs);
-                    ResultSet rs = psSelectByNick.executeQuery();
-                    if (rs.next()) {
-                        jid = rs.getString(1);
-                    }
-                }
-            } catch (Exception e) {
-                log.warn("Can't execute JDBC statement", e);
-            }
             if (jid == null) {
-                try {
-                    synchronized (dbDriver) {
-                        connectToDB();
-                        psUpdateNick.setString(1, msg.commandArgs);
-                        psUpdateNick.setString(2, msg.fromJID);
-                        psUpdateNick.executeUpdate();
-                    }
-                } catch (Exception e) {
-                    log.warn("Can't execute JDBC statement", e);
-                }
                 bot.sendReply(msg, "Nickname of user " + msg.fromJID
                         + " changed to " + msg.commandArgs);
                 return;
@@ -278,13 +185,8 @@ public class Users extends Module {
         if (msg.command.equals("list_unapproved")) {
             String message = "";
             try {
-                synchronized (dbDriver) {
-                    connectToDB();
-                    ResultSet rs = psSelectUnapproved.executeQuery();
-                    while (rs.next()) {
-                        message += "\n" + rs.getString(1)
-                                + " (" + rs.getString(2) + ")";
-                    }
+                for (String[] user : dao.getUnapproved()) {
+                    message += "\n" + user[0] + " (" + user[1] + ")";
                 }
             } catch (Exception e) {
                 log.warn("Can't execute JDBC statement", e);
@@ -298,11 +200,7 @@ public class Users extends Module {
         }
         if (msg.command.equals("approve")) {
             try {
-                synchronized (dbDriver) {
-                    connectToDB();
-                    psApprove.setString(1, msg.commandArgs);
-                    psApprove.executeUpdate();
-                }
+                dao.approve(msg.commandArgs);
                 bot.sendReply(msg, "Registration for user '" + msg.commandArgs
                         + "' has been approved.");
             } catch (Exception e) {
@@ -312,10 +210,7 @@ public class Users extends Module {
         }
         if (msg.command.equals("approve_all")) {
             try {
-                synchronized (dbDriver) {
-                    connectToDB();
-                    psApproveAll.executeUpdate();
-                }
+                dao.approveAll();
                 bot.sendReply(msg, "All unapproved user registrations have been approved.");
             } catch (Exception e) {
                 log.warn("Can't execute JDBC statement", e);
@@ -324,13 +219,343 @@ public class Users extends Module {
         }
     }
 
+    private void register(Message msg, char[] password) {
+        String hash;
+        try {
+            hash = hasher.hash(password);
+        } catch (GeneralSecurityException e) {
+            log.warn("Can't get hash of password", e);
+            bot.sendReply(msg, "Registration error: can't save your password.");
+            return;
+        }
+        try {
+            if (dao.register(msg.fromJID, hash)) {
+                bot.sendReply(msg, "User " + msg.fromJID
+                        + " registered successfully.");
+            } else {
+                bot.sendReply(msg, "Password for user " + msg.fromJID
+                        + " updated successfully.");
+            }
+        } catch (SQLException e) {
+            log.warn("Can't execute JDBC statement", e);
+            bot.sendReply(msg, "Registration error: can't save your password.");
+        }
+    }
+
+    @Override
+    public ConnectionPool getConnectionPool() {
+        return pool;
+    }
+
     @Override
     public void onUnload() {
+        // Queued registrations are finished before the DB is released
+        hasher.shutdown();
+        pool.release();
+    }
+
+}
+
+/**
+ * Access to the table of users. All users are kept in memory: reads don't
+ * touch the DB, changes are written to the DB first and then to memory.
+ * Changes are written one at a time, so a nick can't be taken by two users;
+ * reads don't wait for writes.
+ */
+class UsersDAO {
+
+    private final ConnectionPool pool;
+    private final Map<String, String> config;
+    private final Object lock;
+    private final Object writeLock;
+    private final Map<String, User> users;
+    private final Map<String, String> nicks;
+    private boolean loaded;
+
+    /**
+     * Registered user.
+     */
+    private static class User {
+
+        private final String jid;
+        private String nick;
+        private String password;
+        private boolean approved;
+
+        public User(String jid, String nick, String password, boolean approved) {
+            this.jid = jid;
+            this.nick = nick;
+            this.password = password;
+            this.approved = approved;
+        }
+    }
+
+    public UsersDAO(ConnectionPool pool, Map<String, String> config, Logger log) {
+        this.pool = pool;
+        this.config = config;
+        lock = new Object();
+        writeLock = new Object();
+        // Users are listed in order of registration
+        users = new LinkedHashMap<>();
+        nicks = new HashMap<>();
+        pool.migrate(config.get("create"));
+        if (config.get("create-indexes") != null) {
+            pool.migrateOptional(config.get("create-indexes").split(";"));
+        }
         try {
-            connection.close();
+            load();
+            log.info("%d users have been loaded", users.size());
         } catch (SQLException e) {
-            log.warn("Can't close JDBC connection", e);
+            log.warn("Can't load users, they will be loaded on first use", e);
+        }
+    }
+
+    private void load() throws SQLException {
+        synchronized (writeLock) {
+            if (loaded) {
+                return;
+            }
+            Map<String, User> loadedUsers = new LinkedHashMap<>();
+            try (ConnectionPool.Session db = pool.getConnection();
+                    ResultSet rs = db.prepare(config.get("select-all")).executeQuery()) {
+                while (rs.next()) {
+                    User user = new User(rs.getString(1), rs.getString(2),
+                            rs.getString(3), rs.getInt(4) != 0);
+                    // The first row wins as "LIMIT 1" of old queries did
+                    if (!loadedUsers.containsKey(user.jid)) {
+                        loadedUsers.put(user.jid, user);
+                    }
+                }
+            }
+            synchronized (lock) {
+                users.putAll(loadedUsers);
+                for (User user : loadedUsers.values()) {
+                    if (user.nick != null && !nicks.containsKey(user.nick)) {
+                        nicks.put(user.nick, user.jid);
+                    }
+                }
+                loaded = true;
+            }
+        }
+    }
+
+    private void ensureLoaded() throws SQLException {
+        synchronized (lock) {
+            if (loaded) {
+                return;
+            }
+        }
+        load();
+    }
+
+    private User getUser(String jid) throws SQLException {
+        ensureLoaded();
+        synchronized (lock) {
+            return users.get(jid);
+        }
+    }
+
+    private int update(String query, String... params) throws SQLException {
+        try (ConnectionPool.Session db = pool.getConnection()) {
+            PreparedStatement update = db.prepare(config.get(query));
+            for (int i = 0; i < params.length; i++) {
+                update.setString(i + 1, params[i]);
+            }
+            return update.executeUpdate();
+        }
+    }
+
+    public boolean isRegistered(String jid) throws SQLException {
+        return getUser(jid) != null;
+    }
+
+    /**
+     * Adds the user or changes the password of a registered user.
+     *
+     * @return <code>true</code> if the user has been added
+     */
+    public boolean register(String jid, String password) throws SQLException {
+        synchronized (writeLock) {
+            User user = getUser(jid);
+            if (user != null) {
+                update("update", password, jid);
+                synchronized (lock) {
+                    user.password = password;
+                }
+                return false;
+            }
+            update("insert", jid, jid, password);
+            synchronized (lock) {
+                users.put(jid, new User(jid, jid, password, false));
+                if (!nicks.containsKey(jid)) {
+                    nicks.put(jid, jid);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Changes nick of the user if it isn't taken.
+     *
+     * @return <code>null</code> if the nick has been changed or JID of the
+     * user who has this nick
+     */
+    public String setNick(String jid, String nick) throws SQLException {
+        synchronized (writeLock) {
+            User user = getUser(jid);
+            String owner;
+            synchronized (lock) {
+                owner = nicks.get(nick);
+            }
+            if (owner != null || user == null) {
+                return owner;
+            }
+            update("update-nick", nick, jid);
+            synchronized (lock) {
+                if (user.nick != null && jid.equals(nicks.get(user.nick))) {
+                    nicks.remove(user.nick);
+                }
+                user.nick = nick;
+                nicks.put(nick, jid);
+            }
+            return null;
         }
     }
 
+    /**
+     * @return JIDs and nicks of unapproved users
+     */
+    public List<String[]> getUnapproved() throws SQLException {
+        ensureLoaded();
+        List<String[]> result = new ArrayList<>();
+        synchronized (lock) {
+            for (User user : users.values()) {
+                if (!user.approved) {
+                    result.add(new String[]{user.jid, user.nick});
+                }
+            }
+        }
+        return result;
+    }
+
+    public void approve(String jid) throws SQLException {
+        synchronized (writeLock) {
+            User user = getUser(jid);
+            update("update-approve", jid);
+            if (user != null) {
+                synchronized (lock) {
+                    user.approved = true;
+                }
+            }
+        }
+    }
+
+    public void approveAll() throws SQLException {
+        synchronized (writeLock) {
+            ensureLoaded();
+            update("update-approve-all");
+            synchronized (lock) {
+                for (User user : users.values()) {
+                    user.approved = true;
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Salted password hashes computed by a bounded pool of threads. Hashes are
+ * PBKDF2 with HMAC-SHA1, stored as "pbkdf2-sha1$iterations$salt$hash" with
+ * hex salt and hash, so the cost can be raised without breaking stored
+ * hashes.
+ */
+class PasswordHasher {
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 160;
+
+    private final int iterations;
+    private final SecureRandom random;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param name name of threads
+     * @param iterations number of PBKDF2 iterations
+     * @param threads maximum number of hashing threads
+     * @param capacity maximum number of waiting tasks
+     */
+    public PasswordHasher(final String name, int iterations, int threads,
+            int capacity) {
+        this.iterations = Math.max(iterations, 1);
+        random = new SecureRandom();
+        threads = Math.max(threads, 1);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(capacity, 1)),
+                new ThreadFactory() {
+                    private final AtomicInteger number = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r,
+                                PasswordHasher.class.getName() + "("
+                                + name + ")-" + number.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns a hash of the password with a new random salt. The password is
+     * cleared.
+     *
+     * @param password the password
+     * @return the hash
+     * @throws GeneralSecurityException if PBKDF2 isn't available
+     */
+    public String hash(char[] password) throws GeneralSecurityException {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, HASH_BITS);
+        Arrays.fill(password, '\0');
+        try {
+            byte[] hash = SecretKeyFactory.getInstance(ALGORITHM)
+                    .generateSecret(spec).getEncoded();
+            return "pbkdf2-sha1$" + iterations + "$"
+                    + HexCodec.bytesToHex(salt) + "$"
+                    + HexCodec.bytesToHex(hash);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Runs the task in a hashing thread.
+     *
+     * @param task the task
+     * @return future of the task or <code>null</code> if too many tasks are
+     * waiting
+     */
+    public Future<?> submit(Runnable task) {
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finishes waiting tasks and stops threads.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 }
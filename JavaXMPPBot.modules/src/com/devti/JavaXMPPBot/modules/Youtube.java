@@ -24,22 +24,19 @@ package com.devti.JavaXMPPBot.modules;
 
 import com.devti.JavaXMPPBot.Bot;
 import com.devti.JavaXMPPBot.Command;
+import com.devti.JavaXMPPBot.ConnectionPool;
+import com.devti.JavaXMPPBot.DatabaseModule;
+import com.devti.JavaXMPPBot.Link;
 import com.devti.JavaXMPPBot.Message;
+import com.devti.JavaXMPPBot.MessageFilter;
 import com.devti.JavaXMPPBot.Module;
 import java.io.File;
-import java.net.URL;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class Youtube extends Module {
+public class Youtube extends Module implements DatabaseModule {
 
     static private final Map<String, String> defaultConfig = new HashMap<>();
 
@@ -48,7 +45,11 @@ public class Youtube extends Module {
         defaultConfig.put("db-url", "jdbc:sqlite:" + System.getProperty("user.home") + File.separator + "JavaXMPPBot" + File.separator + "youtube.db");
         defaultConfig.put("db-username", null);
         defaultConfig.put("db-password", null);
-        defaultConfig.put("url-pattern", "https?://w*\\.youtube.com/[:a-z0-9%$&_./~()?=+-]*");
+        defaultConfig.put("db-pool-size", "4");
+        defaultConfig.put("write-batch-size", "50");
+        defaultConfig.put("write-delay", "1000");
+        defaultConfig.put("dup-cache-size", "1000");
+        defaultConfig.put("url-pattern", null);
         defaultConfig.put("tag-pattern", "\\[\\s*([^\\]]+)\\s*\\]");
         defaultConfig.put("dup-reply", "%s is a duplicate posted at %s by %s");
         defaultConfig.put("save-real-jid", "no");
@@ -56,27 +57,20 @@ public class Youtube extends Module {
         defaultConfig.put("exclude-specified-tags", "no");
         defaultConfig.put("create", "CREATE TABLE IF NOT EXISTS `javaxmppbot_youtube` (`id` TEXT(11), `time` INT(10), `from` TEXT(255))");
         defaultConfig.put("create-tags", "CREATE TABLE IF NOT EXISTS `javaxmppbot_youtube_tags` (`id` TEXT(11), `tag` TEXT(20))");
+        defaultConfig.put("create-indexes", "CREATE INDEX IF NOT EXISTS `javaxmppbot_youtube_id` ON `javaxmppbot_youtube` (`id`);CREATE INDEX IF NOT EXISTS `javaxmppbot_youtube_tags_id` ON `javaxmppbot_youtube_tags` (`id`)");
         defaultConfig.put("insert", "INSERT INTO `javaxmppbot_youtube` (`id`, `time`, `from`) VALUES (?, strftime('%s','now'), ?)");
         defaultConfig.put("insert-tag", "INSERT INTO `javaxmppbot_youtube_tags` (`id`, `tag`) VALUES (?, ?)");
         defaultConfig.put("select", "SELECT datetime(`time`, 'unixepoch', 'localtime'), `from` FROM `javaxmppbot_youtube` WHERE `id` = ? LIMIT 1");
         defaultConfig.put("delete", "DELETE FROM `javaxmppbot_youtube` WHERE `id`=?");
+        defaultConfig.put("select-keys", "SELECT `id` FROM `javaxmppbot_youtube`");
         defaultConfig.put("delete-tag", "DELETE FROM `javaxmppbot_youtube_tags` WHERE `id`=?");
     }
 
-    private final Pattern urlPattern;
+    private Pattern urlPattern;
     private final Pattern tagPattern;
 
-    private final String dbUrl;
-    private final String dbDriver;
-    private final String dbUsername;
-    private final String dbPassword;
-
-    private Connection connection;
-    private PreparedStatement psAddRecord;
-    private PreparedStatement psAddTag;
-    private PreparedStatement psSearchRecord;
-    private PreparedStatement psDeleteRecord;
-    private PreparedStatement psDeleteTag;
+    private final ConnectionPool pool;
+    private final KeyedDAO dao;
 
     protected final String dupReplyFormat;
     protected final boolean saveRealJID;
@@ -89,12 +83,10 @@ public class Youtube extends Module {
         super(bot, cfg, defaultConfig);
 
         // Get properties
-        dbDriver = config.get("db-driver");
-        dbUrl = config.get("db-url");
-        dbUsername = config.get("db-username");
-        dbPassword = config.get("db-password");
-        urlPattern = Pattern.compile(config.get("url-pattern"),
-                Pattern.CASE_INSENSITIVE);
+        if (config.get("url-pattern") != null) {
+            urlPattern = Pattern.compile(config.get("url-pattern"),
+                    Pattern.CASE_INSENSITIVE);
+        }
         tagPattern = Pattern.compile(config.get("tag-pattern"),
                 Pattern.CASE_INSENSITIVE);
         dupReplyFormat = config.get("dup-reply");
@@ -107,14 +99,9 @@ public class Youtube extends Module {
         excludeTags = config.get("exclude-specified-tags").equalsIgnoreCase("yes");
         includeTags = (!excludeTags && (tags.length > 0));
 
-        // Initialize JDBC driver
-        try {
-            Class.forName(dbDriver).newInstance();
-        } catch (ClassNotFoundException | IllegalAccessException |
-                InstantiationException e) {
-            log.warn("Can't initialize JDBC driver '%s': %s",
-                    dbDriver, e.getLocalizedMessage());
-        }
+        // Connect to DB
+        pool = acquireConnectionPool();
+        dao = new KeyedDAO(pool, config, log);
 
         try {
             // Register commands provided by this module
@@ -126,41 +113,16 @@ public class Youtube extends Module {
         }
     }
 
-    private void connectToDB() throws Exception {
-        // Return if connection is opened already
-        try {
-            if (connection != null
-                    && !connection.isClosed()
-                    && (dbDriver.equalsIgnoreCase("org.sqlite.JDBC")
-                    || connection.isValid(5))) {
-                return;
-            }
-        } catch (SQLException e) {
-            log.warn("JDBC connection isn't ready or can't check it", e);
-        }
-        // Connect
-        connection = DriverManager.getConnection(dbUrl, dbUsername, dbPassword);
-        // Prepare JDBC statements and create table if it doesn't exist
-        PreparedStatement createTable = connection.prepareStatement(config.get("create"));
-        createTable.execute();
-        createTable = connection.prepareStatement(config.get("create-tags"));
-        createTable.execute();
-        psAddRecord = connection.prepareStatement(config.get("insert"));
-        psAddTag = connection.prepareStatement(config.get("insert-tag"));
-        psSearchRecord = connection.prepareStatement(config.get("select"));
-        psDeleteRecord = connection.prepareStatement(config.get("delete"));
-        psDeleteTag = connection.prepareStatement(config.get("delete-tag"));
+    @Override
+    public MessageFilter getMessageFilter() {
+        return super.getMessageFilter().withURL();
     }
 
     @Override
     public boolean processMessage(Message msg) {
         String message = msg.body;
         // Get tags
-        ArrayList<String> messageTags = new ArrayList<>();
-        Matcher matcher = tagPattern.matcher(message);
-        while (matcher.find()) {
-            messageTags.add(matcher.group(1));
-        }
+        List<String> messageTags = msg.find(tagPattern, 1);
 
         // Check tag exclusions
         if (excludeTags) {
@@ -193,44 +155,23 @@ public class Youtube extends Module {
         }
 
         // Get URLs
-        matcher = urlPattern.matcher(message);
-        while (matcher.find()) {
+        for (Link link : msg.getLinks()) {
+            String id = link.getYoutubeId();
+            if (id == null || urlPattern != null
+                    && !urlPattern.matcher(link.getText()).find()) {
+                continue;
+            }
             try {
-                URL url = new URL(matcher.group());
-                log.info("I have got a new youtube link " + url.toString());
-                String[] params = url.getQuery().split("&");
-                for (String param : params) {
-                    String[] p = param.split("=");
-                    if (!p[0].equalsIgnoreCase("v")) {
-                        continue;
-                    }
-                    ResultSet rs;
-                    synchronized (dbDriver) {
-                        connectToDB();
-                        psSearchRecord.setString(1, p[1]);
-                        rs = psSearchRecord.executeQuery();
-                    }
-                    if (rs.next()) {
-                        bot.sendReply(msg, String.format(dupReplyFormat,
-                                url.toString(), rs.getString(1),
-                                rs.getString(2)));
-                        break;
-                    }
-                    synchronized (dbDriver) {
-                        connectToDB();
-                        psAddRecord.setString(1, p[1]);
-                        psAddRecord.setString(2, from);
-                        psAddRecord.executeUpdate();
-                        for (int i = 0; i < messageTags.size(); i++) {
-                            psAddTag.setString(1, p[1]);
-                            psAddTag.setString(2, messageTags.get(i));
-                            psAddTag.executeUpdate();
-                        }
-                    }
-                    break;
+                log.info("I have got a new youtube link " + link.getURL());
+                String[] dup = dao.search(id);
+                if (dup != null) {
+                    bot.sendReply(msg, String.format(dupReplyFormat,
+                            link.getURL(), dup[0], dup[1]));
+                    continue;
                 }
+                dao.add(id, from, messageTags, from);
             } catch (Exception e) {
-                log.warn("Can't create an URL from string", e);
+                log.warn("Can't process youtube link " + link.getURL(), e);
             }
         }
         return super.processMessage(msg);
@@ -242,20 +183,8 @@ public class Youtube extends Module {
         if (msg.command.equals("delete_youtube_link")) {
             String id = msg.commandArgs.trim();
             try {
-                ResultSet rs;
-                synchronized (dbDriver) {
-                    connectToDB();
-                    psSearchRecord.setString(1, id);
-                    rs = psSearchRecord.executeQuery();
-                }
-                if (rs.next()) {
-                    synchronized (dbDriver) {
-                        connectToDB();
-                        psDeleteRecord.setString(1, id);
-                        psDeleteRecord.executeUpdate();
-                        psDeleteTag.setString(1, id);
-                        psDeleteTag.executeUpdate();
-                    }
+                if (dao.search(id) != null) {
+                    dao.delete(id);
                     bot.sendReply(msg, "Youtube link '" + id
                             + "' has been deleted.");
                     return;
@@ -271,13 +200,15 @@ public class Youtube extends Module {
         }
     }
 
+    @Override
+    public ConnectionPool getConnectionPool() {
+        return pool;
+    }
+
     @Override
     public void onUnload() {
-        try {
-            connection.close();
-        } catch (SQLException e) {
-            log.warn("Can't close JDBC connection", e);
-        }
+        dao.close();
+        pool.release();
     }
 
 }
@@ -0,0 +1,362 @@
+/*
+ *  JavaXMPPBot - XMPP(Jabber) bot written in Java
+ *  Copyright 2010 Mikhail Telnov <michael.telnov@gmail.com>
+ *
+ *  This file is part of JavaXMPPBot.
+ *
+ *  JavaXMPPBot is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JavaXMPPBot is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JavaXMPPBot.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  $Id$
+ *
+ */
+package com.devti.JavaXMPPBot;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind queue of DB inserts.
+ * <p>
+ * Records are queued and written later in one transaction with JDBC batches,
+ * when the queue reaches the batch size or after the delay, whichever comes
+ * first. Until a record is committed its value can be read with
+ * {@link #getPending(String)} by any of its keys, so duplicate checks see
+ * queued records. A queued record is replaced by a new record with the same
+ * first key. Deletes and other direct writes must call {@link #flush()}
+ * first to keep the order of changes.
+ *
+ * @author Mikhail Telnov <michael.telnov@gmail.com>
+ */
+public class BatchWriter {
+
+    /**
+     * Number of attempts to write a record before it's dropped.
+     */
+    private static final int ATTEMPTS = 3;
+
+    private static ScheduledExecutorService scheduler;
+
+    /**
+     * Queued record, it adds its rows to the batch when it's written.
+     */
+    public interface Record {
+
+        public void write(Batch batch) throws SQLException;
+    }
+
+    /**
+     * Record which is told when it's committed, e.g. to update an in-memory
+     * index only with rows which are in the DB. Dropped records aren't told.
+     */
+    public interface CommitAware extends Record {
+
+        /**
+         * Called after the transaction is committed, while the record can
+         * still be read with {@link #getPending(String)}.
+         */
+        public void committed();
+    }
+
+    /**
+     * Rows of one transaction grouped by statements.
+     */
+    public static final class Batch {
+
+        private final ConnectionPool.Session db;
+        private final Set<PreparedStatement> statements;
+
+        private Batch(ConnectionPool.Session db) {
+            this.db = db;
+            statements = new LinkedHashSet<>();
+        }
+
+        /**
+         * Adds a row to the batch of the statement. Statements are executed
+         * in order of their first use.
+         *
+         * @param sql the statement
+         * @param params parameters: strings, numbers, byte arrays or
+         * <code>null</code>
+         * @throws SQLException if the statement can't be prepared
+         */
+        public void add(String sql, Object... params) throws SQLException {
+            PreparedStatement statement = db.prepare(sql);
+            for (int i = 0; i < params.length; i++) {
+                Object param = params[i];
+                if (param == null) {
+                    statement.setNull(i + 1, Types.VARCHAR);
+                } else if (param instanceof byte[]) {
+                    statement.setBytes(i + 1, (byte[]) param);
+                } else if (param instanceof Number) {
+                    statement.setLong(i + 1, ((Number) param).longValue());
+                } else {
+                    statement.setString(i + 1, param.toString());
+                }
+            }
+            statement.addBatch();
+            statements.add(statement);
+        }
+    }
+
+    private static class Entry {
+
+        private final String[] keys;
+        private final Object value;
+        private final Record record;
+        private int attempts;
+
+        public Entry(String[] keys, Object value, Record record) {
+            this.keys = keys;
+            this.value = value;
+            this.record = record;
+        }
+    }
+
+    private final Object lock;
+    private final Object flushLock;
+    private final Logger logger;
+    private final ConnectionPool pool;
+    private final int batchSize;
+    private final ArrayDeque<Entry> queue;
+    private final Map<String, Entry> pending;
+    private final ScheduledFuture<?> timer;
+    private final Runnable flusher;
+    private boolean flushRequested;
+
+    /**
+     * @param logger logger for errors
+     * @param pool pool of connections to the DB
+     * @param batchSize maximum number of records in one transaction
+     * @param delay maximum time in milliseconds a record waits in the queue;
+     * if it's 0 records are written right away
+     */
+    public BatchWriter(Logger logger, ConnectionPool pool, int batchSize,
+            long delay) {
+        this.logger = logger;
+        this.pool = pool;
+        this.batchSize = batchSize < 1 ? 1 : batchSize;
+        lock = new Object();
+        flushLock = new Object();
+        queue = new ArrayDeque<>();
+        pending = new HashMap<>();
+        flusher = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lock) {
+                    flushRequested = false;
+                }
+                flush();
+            }
+        };
+        if (delay > 0) {
+            timer = getScheduler().scheduleWithFixedDelay(flusher, delay,
+                    delay, TimeUnit.MILLISECONDS);
+        } else {
+            timer = null;
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, BatchWriter.class.getName());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.setRemoveOnCancelPolicy(true);
+            scheduler = executor;
+        }
+        return scheduler;
+    }
+
+    /**
+     * Returns current local time in the format of SQLite's
+     * <code>datetime(time, 'unixepoch', 'localtime')</code>, for values of
+     * records which store the time of insertion.
+     *
+     * @return current time
+     */
+    public static String now() {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+    }
+
+    /**
+     * Queues the record.
+     *
+     * @param value value returned by {@link #getPending(String)} until the
+     * record is written
+     * @param record the record
+     * @param keys keys of the record, may be omitted
+     */
+    public void write(Object value, Record record, String... keys) {
+        Entry entry = new Entry(keys, value, record);
+        boolean flushNow = false;
+        synchronized (lock) {
+            if (keys.length > 0) {
+                Entry old = pending.get(keys[0]);
+                if (old != null && queue.remove(old)) {
+                    forget(old);
+                }
+            }
+            queue.add(entry);
+            for (String key : keys) {
+                pending.put(key, entry);
+            }
+            if (timer == null) {
+                flushNow = true;
+            } else if (queue.size() >= batchSize && !flushRequested) {
+                flushRequested = true;
+                getScheduler().execute(flusher);
+            }
+        }
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    /**
+     * Returns the value of the queued record.
+     *
+     * @param key key of the record
+     * @return the value or <code>null</code> if there is no queued record
+     * with this key
+     */
+    public Object getPending(String key) {
+        synchronized (lock) {
+            Entry entry = pending.get(key);
+            return entry == null ? null : entry.value;
+        }
+    }
+
+    private void forget(Entry entry) {
+        for (String key : entry.keys) {
+            if (pending.get(key) == entry) {
+                pending.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Writes all queued records.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            while (true) {
+                List<Entry> entries = new ArrayList<>();
+                synchronized (lock) {
+                    while (entries.size() < batchSize && !queue.isEmpty()) {
+                        entries.add(queue.poll());
+                    }
+                }
+                if (entries.isEmpty()) {
+                    return;
+                }
+                boolean written = write(entries);
+                if (written) {
+                    committed(entries);
+                }
+                synchronized (lock) {
+                    for (int i = entries.size() - 1; i >= 0; i--) {
+                        Entry entry = entries.get(i);
+                        if (!written && ++entry.attempts < ATTEMPTS) {
+                            queue.addFirst(entry);
+                        } else {
+                            forget(entry);
+                        }
+                    }
+                }
+                if (!written) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void committed(List<Entry> entries) {
+        for (Entry entry : entries) {
+            if (entry.record instanceof CommitAware) {
+                try {
+                    ((CommitAware) entry.record).committed();
+                } catch (RuntimeException e) {
+                    logger.warn("Can't process a committed record", e);
+                }
+            }
+        }
+    }
+
+    private boolean write(List<Entry> entries) {
+        try (ConnectionPool.Session db = pool.getConnection()) {
+            Batch batch = new Batch(db);
+            boolean committed = false;
+            try {
+                db.begin();
+                for (Entry entry : entries) {
+                    entry.record.write(batch);
+                }
+                for (PreparedStatement statement : batch.statements) {
+                    statement.executeBatch();
+                }
+                db.commit();
+                committed = true;
+            } finally {
+                if (!committed) {
+                    // Cached statements mustn't keep rows of a failed batch
+                    for (PreparedStatement statement : batch.statements) {
+                        statement.clearBatch();
+                    }
+                }
+            }
+            return true;
+        } catch (SQLException | RuntimeException e) {
+            logger.warn("Can't write %d records into the DB: %s",
+                    entries.size(), e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Stops the timer and writes all queued records.
+     */
+    public void close() {
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        flush();
+        synchronized (lock) {
+            if (!queue.isEmpty()) {
+                logger.warn("%d records haven't been written into the DB",
+                        queue.size());
+            }
+        }
+    }
+}
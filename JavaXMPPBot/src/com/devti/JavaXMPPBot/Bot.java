@@ -145,6 +145,30 @@ public interface Bot {
      */
     public Module getModule(String name);
 
+    /**
+     * Returns the {@link MessageDispatcher} which distributes incoming
+     * messages between worker threads.
+     *
+     * @return {@link MessageDispatcher} object
+     */
+    public MessageDispatcher getDispatcher();
+
+    /**
+     * Returns the {@link CommandRouter} which parses commands and keeps
+     * statistics of their invocations.
+     *
+     * @return {@link CommandRouter} object
+     */
+    public CommandRouter getCommandRouter();
+
+    /**
+     * Returns the {@link ModulePipeline} which passes non-command messages
+     * through loaded modules.
+     *
+     * @return {@link ModulePipeline} object
+     */
+    public ModulePipeline getModulePipeline();
+
     /**
      * Returns list of registered commands.
      *
@@ -162,9 +186,9 @@ public interface Bot {
     public void registerCommand(Command command) throws Exception;
 
     /**
-     * Returns the {@link Command} object specified by its name.
+     * Returns the {@link Command} object specified by its name or alias.
      *
-     * @param command the name of the command
+     * @param command the name or alias of the command
      * @return {@link Command} object
      */
     public Command getCommand(String command);
@@ -46,6 +46,10 @@ public class Command {
      * Module implements this command.
      */
     public final Module module;
+    /**
+     * Alternative names of the command.
+     */
+    public final String[] aliases;
 
     /**
      *
@@ -55,10 +59,23 @@ public class Command {
      * @param module Module implements this command.
      */
     public Command(String command, String description, boolean ownerOnly, Module module) {
+        this(command, description, ownerOnly, module, new String[0]);
+    }
+
+    /**
+     *
+     * @param command Command name (command executes if bot receives message starting with {@link Bot#getCommandPrefix commandPrefix} + {@link Command#command command}).
+     * @param description Command description used for help.
+     * @param ownerOnly If true, this command available for bot owners.
+     * @param module Module implements this command.
+     * @param aliases Alternative names of the command.
+     */
+    public Command(String command, String description, boolean ownerOnly, Module module, String... aliases) {
         this.command = command;
         this.description = description;
         this.ownerOnly = ownerOnly;
         this.module = module;
+        this.aliases = aliases;
     }
 
 }
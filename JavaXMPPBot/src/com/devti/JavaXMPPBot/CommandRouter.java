@@ -0,0 +1,346 @@
+/*
+ *  JavaXMPPBot - XMPP(Jabber) bot written in Java
+ *  Copyright 2010 Mikhail Telnov <michael.telnov@gmail.com>
+ *
+ *  This file is part of JavaXMPPBot.
+ *
+ *  JavaXMPPBot is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JavaXMPPBot is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JavaXMPPBot.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  $Id$
+ *
+ */
+package com.devti.JavaXMPPBot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Parses commands from message bodies and finds {@link Command} objects for
+ * them.
+ * <p>
+ * A command can be called by its name, by one of its aliases or by any
+ * abbreviation which matches only one command. Lookups and invocation
+ * statistics don't take any locks: registered commands and their statistics
+ * are kept in an immutable snapshot which is rebuilt on every change.
+ *
+ * @author Mikhail Telnov <michael.telnov@gmail.com>
+ */
+public class CommandRouter {
+
+    /**
+     * Upper bounds (in milliseconds) of the latency histogram buckets. The
+     * last bucket counts all invocations which took longer.
+     */
+    public static final long[] LATENCY_BOUNDS = {1, 10, 100, 1000, 10000};
+
+    /**
+     * Invocation statistics of a command.
+     */
+    public static class Statistics {
+
+        private final AtomicLong count;
+        private final AtomicLong totalTime;
+        private final AtomicLongArray histogram;
+
+        private Statistics() {
+            count = new AtomicLong();
+            totalTime = new AtomicLong();
+            histogram = new AtomicLongArray(LATENCY_BOUNDS.length + 1);
+        }
+
+        private void record(long nanos) {
+            count.incrementAndGet();
+            totalTime.addAndGet(nanos);
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int i = 0;
+            while (i < LATENCY_BOUNDS.length && millis >= LATENCY_BOUNDS[i]) {
+                i++;
+            }
+            histogram.incrementAndGet(i);
+        }
+
+        /**
+         * Returns number of invocations.
+         *
+         * @return number of invocations
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Returns total time in milliseconds spent by the command.
+         *
+         * @return total time in milliseconds
+         */
+        public long getTotalTime() {
+            return TimeUnit.NANOSECONDS.toMillis(totalTime.get());
+        }
+
+        /**
+         * Returns latency histogram, see {@link #LATENCY_BOUNDS}.
+         *
+         * @return number of invocations in each bucket
+         */
+        public long[] getHistogram() {
+            long[] result = new long[histogram.length()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = histogram.get(i);
+            }
+            return result;
+        }
+    }
+
+    private static class Snapshot {
+
+        private final Map<String, Command> commands;
+        private final String[] names;
+        private final Map<String, Statistics> statistics;
+
+        public Snapshot(Map<String, Command> commands,
+                Map<String, Statistics> statistics) {
+            this.commands = commands;
+            this.statistics = new HashMap<>(statistics);
+            names = commands.keySet().toArray(new String[commands.size()]);
+            Arrays.sort(names);
+        }
+    }
+
+    private final Object lock;
+    private final Map<String, Command> registered;
+    private final Map<String, String> configuredAliases;
+    private final Map<String, Statistics> statistics;
+    private volatile Snapshot snapshot;
+
+    public CommandRouter() {
+        lock = new Object();
+        registered = new TreeMap<>();
+        configuredAliases = new HashMap<>();
+        statistics = new HashMap<>();
+        snapshot = new Snapshot(new HashMap<String, Command>(), statistics);
+    }
+
+    private static boolean isCommandChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || c == '_';
+    }
+
+    /**
+     * Fills {@link Message#command} and {@link Message#commandArgs} if the
+     * message body is a command.
+     *
+     * @param message the message
+     * @param prefix command prefix
+     * @return <code>true</code> if the message is a command
+     */
+    public boolean parse(Message message, String prefix) {
+        String body = message.body;
+        if (!body.startsWith(prefix)) {
+            return false;
+        }
+        int length = body.length();
+        int start = prefix.length();
+        int end = start;
+        while (end < length && isCommandChar(body.charAt(end))) {
+            end++;
+        }
+        if (end == start
+                || (end < length && !Character.isWhitespace(body.charAt(end)))) {
+            return false;
+        }
+        int args = end;
+        while (args < length && body.charAt(args) == ' ') {
+            args++;
+        }
+        message.command = body.substring(start, end);
+        message.commandArgs = body.substring(args);
+        return true;
+    }
+
+    /**
+     * Registers the command.
+     *
+     * @param command {@link Command} object
+     * @throws Exception if the name or one of aliases is taken already
+     */
+    public void register(Command command) throws Exception {
+        synchronized (lock) {
+            Map<String, Command> commands = new HashMap<>(snapshot.commands);
+            // Aliases from the bot configuration give way to real names
+            if (commands.containsKey(command.command)
+                    && !configuredAliases.containsKey(command.command)) {
+                throw new Exception("Command '" + command.command
+                        + "' is registred already for module '"
+                        + commands.get(command.command).module.getClass().getName()
+                        + "'.");
+            }
+            for (String alias : command.aliases) {
+                if (commands.containsKey(alias)
+                        && !configuredAliases.containsKey(alias)) {
+                    throw new Exception("Alias '" + alias
+                            + "' is registred already for module '"
+                            + commands.get(alias).module.getClass().getName()
+                            + "'.");
+                }
+            }
+            registered.put(command.command, command);
+            if (!statistics.containsKey(command.command)) {
+                statistics.put(command.command, new Statistics());
+            }
+            commands.put(command.command, command);
+            for (String alias : command.aliases) {
+                commands.put(alias, command);
+            }
+            for (Map.Entry<String, String> alias : configuredAliases.entrySet()) {
+                if (alias.getValue().equals(command.command)
+                        && !commands.containsKey(alias.getKey())) {
+                    commands.put(alias.getKey(), command);
+                }
+            }
+            snapshot = new Snapshot(commands, statistics);
+        }
+    }
+
+    /**
+     * Unregisters all commands and sets aliases from the bot configuration.
+     *
+     * @param aliases map of alias to command name
+     */
+    public void reset(Map<String, String> aliases) {
+        synchronized (lock) {
+            registered.clear();
+            configuredAliases.clear();
+            configuredAliases.putAll(aliases);
+            snapshot = new Snapshot(new HashMap<String, Command>(), statistics);
+        }
+    }
+
+    /**
+     * Returns registered commands sorted by name.
+     *
+     * @return registered commands
+     */
+    public Command[] getCommands() {
+        synchronized (lock) {
+            return registered.values().toArray(new Command[registered.size()]);
+        }
+    }
+
+    /**
+     * Returns aliases of the command including ones from the bot
+     * configuration.
+     *
+     * @param command {@link Command} object
+     * @return aliases of the command
+     */
+    public String[] getAliases(Command command) {
+        List<String> aliases = new ArrayList<>();
+        Snapshot s = snapshot;
+        for (String name : s.names) {
+            if (s.commands.get(name) == command && !name.equals(command.command)) {
+                aliases.add(name);
+            }
+        }
+        return aliases.toArray(new String[aliases.size()]);
+    }
+
+    /**
+     * Returns the command specified by its name or alias.
+     *
+     * @param name name or alias of the command
+     * @return {@link Command} object or <code>null</code> if it isn't found
+     */
+    public Command get(String name) {
+        return snapshot.commands.get(name);
+    }
+
+    /**
+     * Returns the command specified by its name, alias or unique
+     * abbreviation.
+     *
+     * @param name name, alias or abbreviation of the command
+     * @return {@link Command} object or <code>null</code> if it isn't found or
+     * the abbreviation is ambiguous
+     */
+    public Command resolve(String name) {
+        Snapshot s = snapshot;
+        Command command = s.commands.get(name);
+        if (command != null) {
+            return command;
+        }
+        int i = Arrays.binarySearch(s.names, name);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        for (; i < s.names.length && s.names[i].startsWith(name); i++) {
+            Command candidate = s.commands.get(s.names[i]);
+            if (command == null) {
+                command = candidate;
+            } else if (command != candidate) {
+                return null;
+            }
+        }
+        return command;
+    }
+
+    /**
+     * Returns names of all commands which start with the specified string.
+     *
+     * @param prefix beginning of the command name or alias
+     * @return names of matched commands
+     */
+    public String[] complete(String prefix) {
+        Snapshot s = snapshot;
+        Set<String> result = new LinkedHashSet<>();
+        int i = Arrays.binarySearch(s.names, prefix);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        for (; i < s.names.length && s.names[i].startsWith(prefix); i++) {
+            result.add(s.commands.get(s.names[i]).command);
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Records an invocation of the command.
+     *
+     * @param command {@link Command} object
+     * @param nanos time spent by the command in nanoseconds
+     */
+    public void record(Command command, long nanos) {
+        Statistics s = snapshot.statistics.get(command.command);
+        if (s != null) {
+            s.record(nanos);
+        }
+    }
+
+    /**
+     * Returns invocation statistics for all commands which have been
+     * registered since start.
+     *
+     * @return map of command name to its statistics
+     */
+    public Map<String, Statistics> getStatistics() {
+        return new TreeMap<>(snapshot.statistics);
+    }
+}
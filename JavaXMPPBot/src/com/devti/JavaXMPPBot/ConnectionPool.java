@@ -0,0 +1,498 @@
+/*
+ *  JavaXMPPBot - XMPP(Jabber) bot written in Java
+ *  Copyright 2010 Mikhail Telnov <michael.telnov@gmail.com>
+ *
+ *  This file is part of JavaXMPPBot.
+ *
+ *  JavaXMPPBot is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JavaXMPPBot is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JavaXMPPBot.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  $Id$
+ *
+ */
+package com.devti.JavaXMPPBot;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small pool of JDBC connections shared by all modules using the same DB.
+ * <p>
+ * Pools are kept in a registry by DB URL and user name, a module acquires a
+ * pool when it's loaded and releases it when it's unloaded; connections are
+ * closed when the last module releases the pool. Every connection keeps its
+ * prepared statements, so they are prepared once per connection rather than
+ * per query. Schema statements registered with {@link #migrate(String...)}
+ * are executed once per pool before the next query. Pragmas are applied to
+ * every new connection.
+ * <p>
+ * Connections are opened with the given {@link Driver} instance rather than
+ * through {@link java.sql.DriverManager}, which doesn't see drivers loaded by
+ * class loaders of modules.
+ *
+ * @author Mikhail Telnov <michael.telnov@gmail.com>
+ */
+public class ConnectionPool {
+
+    /**
+     * Connection borrowed from the pool. It must be closed to return the
+     * connection to the pool, e.g. with try-with-resources.
+     */
+    public static final class Session implements AutoCloseable {
+
+        private final ConnectionPool pool;
+        private final Entry entry;
+        private boolean transaction;
+        private boolean closed;
+
+        private Session(ConnectionPool pool, Entry entry) {
+            this.pool = pool;
+            this.entry = entry;
+        }
+
+        /**
+         * Returns the prepared statement for the query, the statement is
+         * prepared once per connection.
+         *
+         * @param sql the query
+         * @return prepared statement
+         * @throws SQLException if the statement can't be prepared
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = entry.statements.get(sql);
+            if (statement == null) {
+                statement = entry.connection.prepareStatement(sql);
+                // Also sets how long SQLite waits for a locked DB
+                statement.setQueryTimeout(pool.timeout);
+                entry.statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        /**
+         * Starts a transaction, it's rolled back on {@link #close()} unless
+         * {@link #commit()} is called.
+         *
+         * @throws SQLException if the transaction can't be started
+         */
+        public void begin() throws SQLException {
+            entry.connection.setAutoCommit(false);
+            transaction = true;
+        }
+
+        /**
+         * Commits the transaction started by {@link #begin()}.
+         *
+         * @throws SQLException if the transaction can't be committed
+         */
+        public void commit() throws SQLException {
+            entry.connection.commit();
+            entry.connection.setAutoCommit(true);
+            transaction = false;
+        }
+
+        /**
+         * Returns the connection to the pool.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            boolean broken = false;
+            try {
+                if (transaction) {
+                    entry.connection.rollback();
+                    entry.connection.setAutoCommit(true);
+                }
+                broken = entry.connection.isClosed();
+            } catch (SQLException e) {
+                broken = true;
+            }
+            pool.giveBack(entry, broken);
+        }
+    }
+
+    private static class Entry {
+
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements;
+        private long lastUsed;
+
+        public Entry(Connection connection) {
+            this.connection = connection;
+            statements = new HashMap<>();
+            lastUsed = System.nanoTime();
+        }
+    }
+
+    private static final long VALIDATE_AFTER = TimeUnit.SECONDS.toNanos(60);
+    private static final Map<String, ConnectionPool> pools = new HashMap<>();
+
+    private final String key;
+    private final String url;
+    private final Properties info;
+    private final Semaphore permits;
+    private final ArrayDeque<Entry> idle;
+    private final Set<String> migrations;
+    private final Set<String> migrated;
+    private final Set<String> optional;
+    private final int timeout;
+    private final String[] pragmas;
+    private final Logger logger;
+    private boolean pragmasChecked;
+    private volatile Driver driver;
+    private int references;
+    private volatile boolean closed;
+
+    private ConnectionPool(String key, Driver driver, String url,
+            String username, String password, int size, String[] pragmas,
+            Logger logger) {
+        this.key = key;
+        this.pragmas = pragmas == null ? new String[0] : pragmas;
+        this.logger = logger;
+        this.driver = driver;
+        this.url = url;
+        info = new Properties();
+        if (username != null) {
+            info.setProperty("user", username);
+        }
+        if (password != null) {
+            info.setProperty("password", password);
+        }
+        permits = new Semaphore(size < 1 ? 1 : size, true);
+        idle = new ArrayDeque<>();
+        migrations = new LinkedHashSet<>();
+        migrated = new HashSet<>();
+        optional = new HashSet<>();
+        timeout = 30;
+    }
+
+    /**
+     * Returns the pool for the DB, the pool is created if there is no pool
+     * for it yet. Every call must be paired with {@link #release()}.
+     *
+     * @param driver JDBC driver or <code>null</code> if it can't be loaded
+     * @param url DB URL
+     * @param username DB user name
+     * @param password DB password
+     * @param size maximum number of connections, it's used only when the
+     * pool is created
+     * @param pragmas <code>name=value</code> pairs applied to every new
+     * connection with <code>PRAGMA</code> statements of SQLite, they are used
+     * only when the pool is created
+     * @param logger logger for pragmas which aren't supported by the DB
+     * @return the pool
+     */
+    public static ConnectionPool acquire(Driver driver, String url,
+            String username, String password, int size, String[] pragmas,
+            Logger logger) {
+        String key = url + "\n" + username;
+        synchronized (pools) {
+            ConnectionPool pool = pools.get(key);
+            if (pool == null) {
+                pool = new ConnectionPool(key, driver, url, username,
+                        password, size, pragmas, logger);
+                pools.put(key, pool);
+            } else if (pool.driver == null) {
+                pool.driver = driver;
+            }
+            pool.references++;
+            return pool;
+        }
+    }
+
+    /**
+     * Releases the pool, connections are closed after the last release.
+     */
+    public void release() {
+        synchronized (pools) {
+            if (--references > 0) {
+                return;
+            }
+            pools.remove(key);
+            closed = true;
+        }
+        synchronized (idle) {
+            for (Entry entry : idle) {
+                close(entry);
+            }
+            idle.clear();
+        }
+    }
+
+    /**
+     * Registers schema statements, e.g. <code>CREATE TABLE IF NOT
+     * EXISTS</code>. They are executed in order of registration before the
+     * next query; every distinct statement is executed only once for the
+     * pool, even if several modules register it.
+     *
+     * @param statements SQL statements, <code>null</code> or empty ones are
+     * ignored
+     */
+    public void migrate(String... statements) {
+        synchronized (migrations) {
+            for (String sql : statements) {
+                if (sql != null && !sql.trim().isEmpty()) {
+                    migrations.add(sql);
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers statements like {@link #migrate(String...)} does, but a
+     * failure of one of them is only logged and it isn't executed again. Use
+     * it for statements which the DB can work without, e.g. indexes.
+     *
+     * @param statements SQL statements, <code>null</code> or empty ones are
+     * ignored
+     */
+    public void migrateOptional(String... statements) {
+        synchronized (migrations) {
+            for (String sql : statements) {
+                if (sql != null && !sql.trim().isEmpty()) {
+                    migrations.add(sql);
+                    optional.add(sql);
+                }
+            }
+        }
+    }
+
+    /**
+     * Borrows a connection, waiting for a free one if all connections are
+     * busy.
+     *
+     * @return the connection, it must be closed after use
+     * @throws SQLException if the connection can't be opened
+     */
+    public Session getConnection() throws SQLException {
+        if (driver == null) {
+            throw new SQLException("JDBC driver for " + url + " isn't loaded");
+        }
+        try {
+            if (!permits.tryAcquire(timeout, TimeUnit.SECONDS)) {
+                throw new SQLException("No free connection to " + url
+                        + " during " + timeout + " seconds");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+        Entry entry = null;
+        try {
+            synchronized (idle) {
+                // The most recently used connection is the most likely alive
+                entry = idle.pollLast();
+            }
+            if (entry != null && !isUsable(entry)) {
+                close(entry);
+                entry = null;
+            }
+            if (entry == null) {
+                Connection connection = driver.connect(url, info);
+                if (connection == null) {
+                    throw new SQLException("JDBC driver doesn't accept URL " + url);
+                }
+                entry = new Entry(connection);
+                applyPragmas(connection);
+            }
+            applyMigrations(entry.connection);
+            return new Session(this, entry);
+        } catch (SQLException | RuntimeException e) {
+            if (entry != null) {
+                giveBack(entry, false);
+            } else {
+                permits.release();
+            }
+            throw e;
+        }
+    }
+
+    private boolean isUsable(Entry entry) {
+        try {
+            if (entry.connection.isClosed()) {
+                return false;
+            }
+            // SQLite connections don't break and its driver can't check them
+            if (!url.startsWith("jdbc:sqlite:")
+                    && System.nanoTime() - entry.lastUsed > VALIDATE_AFTER) {
+                return entry.connection.isValid(5);
+            }
+            return true;
+        } catch (SQLException | AbstractMethodError e) {
+            return false;
+        }
+    }
+
+    private void applyPragmas(Connection connection) {
+        if (pragmas.length == 0) {
+            return;
+        }
+        boolean check;
+        synchronized (this) {
+            check = !pragmasChecked;
+            pragmasChecked = true;
+        }
+        for (String pragma : pragmas) {
+            String[] p = pragma.split("=", 2);
+            String name = p[0].trim();
+            if (name.isEmpty() || p.length < 2) {
+                continue;
+            }
+            String value = p[1].trim();
+            try (Statement statement = connection.createStatement()) {
+                String actual = query(statement, "PRAGMA " + name + "=" + value);
+                if (actual == null) {
+                    // Only some pragmas return the new value
+                    actual = query(statement, "PRAGMA " + name);
+                    if (actual == null) {
+                        if (check) {
+                            logger.warn("PRAGMA %s isn't supported by %s", name, url);
+                        }
+                    } else if (check) {
+                        logger.debug("PRAGMA %s=%s", name, actual);
+                    }
+                } else if (!actual.equalsIgnoreCase(value) && check) {
+                    logger.warn("PRAGMA %s is %s instead of %s for %s", name,
+                            actual, value, url);
+                }
+            } catch (SQLException e) {
+                if (check) {
+                    logger.warn("Can't apply PRAGMA %s to %s: %s", name, url,
+                            e.getLocalizedMessage());
+                }
+            }
+        }
+    }
+
+    private static String query(Statement statement, String sql)
+            throws SQLException {
+        if (!statement.execute(sql)) {
+            return null;
+        }
+        try (ResultSet rs = statement.getResultSet()) {
+            return rs.next() ? rs.getString(1) : null;
+        }
+    }
+
+    /**
+     * Returns the plan of the query: <code>EXPLAIN QUERY PLAN</code> for
+     * SQLite and <code>EXPLAIN</code> for other DBs. Parameters of the query
+     * are set to <code>NULL</code>.
+     *
+     * @param sql the query
+     * @return lines of the plan
+     * @throws SQLException if the query can't be explained
+     */
+    public List<String> explain(String sql) throws SQLException {
+        boolean sqlite = url.startsWith("jdbc:sqlite:");
+        List<String> plan = new ArrayList<>();
+        try (Session session = getConnection();
+                PreparedStatement statement = session.entry.connection.prepareStatement(
+                        (sqlite ? "EXPLAIN QUERY PLAN " : "EXPLAIN ") + sql)) {
+            int parameters = 0;
+            try {
+                parameters = statement.getParameterMetaData().getParameterCount();
+            } catch (SQLException | AbstractMethodError e) {
+                // SQLite doesn't need parameters to be set
+            }
+            for (int i = 1; i <= parameters; i++) {
+                statement.setNull(i, Types.VARCHAR);
+            }
+            try (ResultSet rs = statement.executeQuery()) {
+                int columns = rs.getMetaData().getColumnCount();
+                while (rs.next()) {
+                    if (sqlite) {
+                        // The last column is the description of the step
+                        plan.add(rs.getString(columns));
+                    } else {
+                        String line = "";
+                        for (int i = 1; i <= columns; i++) {
+                            line += (i > 1 ? " | " : "") + rs.getString(i);
+                        }
+                        plan.add(line);
+                    }
+                }
+            }
+        }
+        return plan;
+    }
+
+    private void applyMigrations(Connection connection) throws SQLException {
+        synchronized (migrations) {
+            if (migrated.size() == migrations.size()) {
+                return;
+            }
+            for (String sql : migrations) {
+                if (migrated.contains(sql)) {
+                    continue;
+                }
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(sql);
+                } catch (SQLException e) {
+                    if (!optional.contains(sql)) {
+                        throw e;
+                    }
+                    logger.warn("Can't execute '%s' on %s: %s", sql, url,
+                            e.getLocalizedMessage());
+                }
+                migrated.add(sql);
+            }
+        }
+    }
+
+    private void giveBack(Entry entry, boolean broken) {
+        try {
+            if (broken) {
+                close(entry);
+                return;
+            }
+            entry.lastUsed = System.nanoTime();
+            synchronized (idle) {
+                if (closed) {
+                    close(entry);
+                } else {
+                    idle.add(entry);
+                }
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private static void close(Entry entry) {
+        try {
+            entry.connection.close();
+        } catch (SQLException e) {
+            // The connection is dropped anyway
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ *  JavaXMPPBot - XMPP(Jabber) bot written in Java
+ *  Copyright 2010 Mikhail Telnov <michael.telnov@gmail.com>
+ *
+ *  This file is part of JavaXMPPBot.
+ *
+ *  JavaXMPPBot is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JavaXMPPBot is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JavaXMPPBot.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  $Id$
+ *
+ */
+package com.devti.JavaXMPPBot;
+
+/**
+ * {@link Module} which stores its data in a DB. Its queries are taken from
+ * its config, so they can be examined, e.g. with
+ * {@link ConnectionPool#explain(String)}.
+ *
+ * @author Mikhail Telnov <michael.telnov@gmail.com>
+ */
+public interface DatabaseModule {
+
+    /**
+     * @return pool of connections to the DB of the module
+     */
+    public ConnectionPool getConnectionPool();
+}
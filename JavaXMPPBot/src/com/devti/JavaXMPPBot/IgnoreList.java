@@ -0,0 +1,209 @@
+/*
+ *  JavaXMPPBot - XMPP(Jabber) bot written in Java
+ *  Copyright 2010 Mikhail Telnov <michael.telnov@gmail.com>
+ *
+ *  This file is part of JavaXMPPBot.
+ *
+ *  JavaXMPPBot is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JavaXMPPBot is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JavaXMPPBot.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  $Id$
+ *
+ */
+package com.devti.JavaXMPPBot;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.jivesoftware.smack.util.StringUtils;
+
+/**
+ * Compiled list of ignored JIDs.
+ * <p>
+ * Entries of the list are regular expressions, but most of them are plain
+ * JIDs or simple wildcards, so they are sorted out when the list is loaded:
+ * <ul>
+ * <li><code>user@example.com</code> - the JID itself and all its resources,
+ * </li>
+ * <li><code>room@conference.example.com/.*</code> - all resources of the
+ * JID,</li>
+ * <li><code>.*@example.com</code> - all JIDs of the domain,</li>
+ * <li><code>.*\.example.com</code> - all JIDs of subdomains of the
+ * domain,</li>
+ * </ul>
+ * these are checked with hash lookups, the rest of entries are joined into
+ * one regular expression. The compiled list is replaced as a whole, so
+ * checks don't take any locks.
+ * <p>
+ * Besides the list a room can be silenced for a while, e.g. to skip the
+ * history which a room sends after joining.
+ *
+ * @author Mikhail Telnov <michael.telnov@gmail.com>
+ */
+class IgnoreList {
+
+    private static final Pattern LITERAL = Pattern.compile("[\\w@.\\-/]+");
+
+    private static class Rules {
+
+        private final Set<String> jids = new HashSet<>();
+        private final Set<String> bareJIDs = new HashSet<>();
+        private final Set<String> domains = new HashSet<>();
+        private final Set<String> domainSuffixes = new HashSet<>();
+        private Pattern pattern;
+    }
+
+    private final Logger logger;
+    private final Map<String, Long> silenced;
+    private volatile Rules rules;
+
+    public IgnoreList(Logger logger) {
+        this.logger = logger;
+        silenced = new ConcurrentHashMap<>();
+        rules = new Rules();
+    }
+
+    private static String literal(String s) {
+        s = s.replace("\\.", ".");
+        if (!LITERAL.matcher(s).matches()) {
+            return null;
+        }
+        return s.toLowerCase();
+    }
+
+    /**
+     * Replaces the list.
+     *
+     * @param entries regular expressions matching ignored JIDs
+     */
+    public void load(String[] entries) {
+        Rules r = new Rules();
+        StringBuilder regex = new StringBuilder();
+        for (String entry : entries) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            String base = entry;
+            boolean anyResource = false;
+            if (base.endsWith("(/.*)?")) {
+                base = base.substring(0, base.length() - 6);
+                anyResource = true;
+            } else if (base.endsWith("/.*")) {
+                base = base.substring(0, base.length() - 3);
+                anyResource = true;
+            }
+            String s;
+            if (base.startsWith(".*@")
+                    && (s = literal(base.substring(3))) != null
+                    && s.indexOf('@') < 0 && s.indexOf('/') < 0) {
+                r.domains.add(s);
+            } else if ((base.startsWith(".*\\.") || base.startsWith(".*."))
+                    && (s = literal(base.substring(base.indexOf('.', 1) + 1))) != null
+                    && s.indexOf('@') < 0 && s.indexOf('/') < 0) {
+                r.domainSuffixes.add(s);
+            } else if ((s = literal(base)) != null
+                    && (!anyResource || s.indexOf('/') < 0)) {
+                if (anyResource) {
+                    r.bareJIDs.add(s);
+                } else {
+                    r.jids.add(s);
+                }
+            } else {
+                try {
+                    Pattern.compile(entry);
+                } catch (PatternSyntaxException e) {
+                    logger.warn("Invalid ignore list entry '%s': %s", entry,
+                            e.getDescription());
+                    continue;
+                }
+                regex.append(regex.length() == 0 ? "" : "|");
+                regex.append("(?:").append(entry).append(")");
+            }
+        }
+        if (regex.length() > 0) {
+            r.pattern = Pattern.compile(regex.toString());
+        }
+        rules = r;
+    }
+
+    /**
+     * Ignores all messages from the room for the specified time.
+     *
+     * @param room bare JID of the room
+     * @param millis time in milliseconds
+     */
+    public void silence(String room, long millis) {
+        silenced.put(room.toLowerCase(),
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Returns <code>true</code> if the JID is ignored.
+     *
+     * @param jid full or bare JID
+     * @return <code>true</code> if the JID is ignored
+     */
+    public boolean contains(String jid) {
+        if (jid == null) {
+            return false;
+        }
+        String lowerJID = jid.toLowerCase();
+        String bareJID = StringUtils.parseBareAddress(lowerJID);
+        if (!silenced.isEmpty() && isSilenced(bareJID)) {
+            return true;
+        }
+        Rules r = rules;
+        if (r.jids.contains(lowerJID) || r.jids.contains(bareJID)
+                || r.bareJIDs.contains(bareJID)) {
+            return true;
+        }
+        String domain = StringUtils.parseServer(bareJID);
+        if (r.domains.contains(domain)) {
+            return true;
+        }
+        if (!r.domainSuffixes.isEmpty()) {
+            for (int i = domain.indexOf('.'); i >= 0;
+                    i = domain.indexOf('.', i + 1)) {
+                if (r.domainSuffixes.contains(domain.substring(i + 1))) {
+                    return true;
+                }
+            }
+        }
+        return r.pattern != null && r.pattern.matcher(jid).matches();
+    }
+
+    private boolean isSilenced(String bareJID) {
+        Long until = silenced.get(bareJID);
+        if (until == null) {
+            return false;
+        }
+        if (System.nanoTime() - until < 0) {
+            return true;
+        }
+        // Forget expired rooms
+        Iterator<Long> i = silenced.values().iterator();
+        long now = System.nanoTime();
+        while (i.hasNext()) {
+            if (now - i.next() >= 0) {
+                i.remove();
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *  JavaXMPPBot - XMPP(Jabber) bot written in Java
+ *  Copyright 2010 Mikhail Telnov <michael.telnov@gmail.com>
+ *
+ *  This file is part of JavaXMPPBot.
+ *
+ *  JavaXMPPBot is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JavaXMPPBot is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JavaXMPPBot.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  $Id$
+ *
+ */
+package com.devti.JavaXMPPBot;
+
+/**
+ * URL found in a message by {@link LinkExtractor}.
+ * <p>
+ * Besides the text of the URL as it was posted a link has its canonical
+ * form: scheme and host in lower case, no default port, no fragment and no
+ * tracking parameters, non-ASCII characters percent-encoded. Links to the
+ * same Youtube video have the same canonical URL whatever form they were
+ * posted in. Canonical URLs should be used as keys of stored links.
+ *
+ * @author Mikhail Telnov <michael.telnov@gmail.com>
+ */
+public final class Link {
+
+    private final String text;
+    private final String url;
+    private final String host;
+    private final String youtubeId;
+
+    Link(String text, String url, String host, String youtubeId) {
+        this.text = text;
+        this.url = url;
+        this.host = host;
+        this.youtubeId = youtubeId;
+    }
+
+    /**
+     * @return the URL as it's written in the message
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return the canonical URL
+     */
+    public String getURL() {
+        return url;
+    }
+
+    /**
+     * @return host of the URL in lower case
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return ID of a Youtube video or <code>null</code> if it isn't a link to
+     * a video
+     */
+    public String getYoutubeId() {
+        return youtubeId;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof Link && ((Link) obj).url.equals(url);
+    }
+
+    @Override
+    public int hashCode() {
+        return url.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return url;
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ *  JavaXMPPBot - XMPP(Jabber) bot written in Java
+ *  Copyright 2010 Mikhail Telnov <michael.telnov@gmail.com>
+ *
+ *  This file is part of JavaXMPPBot.
+ *
+ *  JavaXMPPBot is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JavaXMPPBot is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JavaXMPPBot.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  $Id$
+ *
+ */
+package com.devti.JavaXMPPBot;
+
+import java.net.IDN;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Finds HTTP(S) URLs in text and brings them to the canonical form.
+ * <p>
+ * The text is scanned once for "://", an URL lasts until a whitespace, a
+ * quote or a bracket; trailing punctuation and unbalanced closing
+ * parentheses aren't included. Tracking parameters (utm_*, fbclid, gclid
+ * etc.) are removed from queries, links to Youtube videos (watch?v=,
+ * youtu.be, shorts, embed, live) are replaced with
+ * <code>https://www.youtube.com/watch?v=ID</code>.
+ *
+ * @author Mikhail Telnov <michael.telnov@gmail.com>
+ */
+public final class LinkExtractor {
+
+    private static final String YOUTUBE_URL = "https://www.youtube.com/watch?v=";
+    private static final String[] YOUTUBE_PATHS = {
+        "/shorts/", "/embed/", "/v/", "/e/", "/live/"
+    };
+    private static final Set<String> TRACKING_PARAMETERS = new HashSet<>(
+            Arrays.asList("fbclid", "gclid", "dclid", "gbraid", "wbraid",
+                    "yclid", "msclkid", "mc_cid", "mc_eid", "igshid", "_ga",
+                    "_gl", "_hsenc", "_hsmi", "mkt_tok", "ref_src"));
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private LinkExtractor() {
+    }
+
+    /**
+     * Finds URLs in the text.
+     *
+     * @param text the text
+     * @return found links in order of appearance, every canonical URL only
+     * once
+     */
+    public static List<Link> extract(String text) {
+        List<Link> links = new ArrayList<>();
+        if (text == null) {
+            return links;
+        }
+        Set<String> found = new HashSet<>();
+        int from = 0;
+        int separator;
+        while ((separator = text.indexOf("://", from)) > 0) {
+            int start = separator;
+            while (start > 0 && isSchemeChar(text.charAt(start - 1))) {
+                start--;
+            }
+            int end = separator + 3;
+            while (end < text.length() && isURLChar(text.charAt(end))) {
+                end++;
+            }
+            from = end;
+            end = trim(text, separator + 3, end);
+            if (end > separator + 3 && start < separator) {
+                Link link = parse(text.substring(start, end));
+                if (link != null && found.add(link.getURL())) {
+                    links.add(link);
+                }
+            }
+        }
+        return links;
+    }
+
+    /**
+     * Brings the URL to the canonical form.
+     *
+     * @param text the URL
+     * @return the link or <code>null</code> if it isn't a valid HTTP(S) URL
+     */
+    public static Link parse(String text) {
+        int separator = text.indexOf("://");
+        if (separator < 0) {
+            return null;
+        }
+        String scheme = text.substring(0, separator).toLowerCase(Locale.ROOT);
+        int defaultPort;
+        if (scheme.equals("http")) {
+            defaultPort = 80;
+        } else if (scheme.equals("https")) {
+            defaultPort = 443;
+        } else {
+            return null;
+        }
+
+        int authorityEnd = separator + 3;
+        while (authorityEnd < text.length()
+                && "/?#".indexOf(text.charAt(authorityEnd)) < 0) {
+            authorityEnd++;
+        }
+        String authority = text.substring(separator + 3, authorityEnd);
+        String rest = text.substring(authorityEnd);
+
+        String userInfo = null;
+        int at = authority.lastIndexOf('@');
+        if (at >= 0) {
+            userInfo = authority.substring(0, at);
+            authority = authority.substring(at + 1);
+        }
+        int port = -1;
+        int colon = authority.lastIndexOf(':');
+        if (colon >= 0) {
+            String p = authority.substring(colon + 1);
+            authority = authority.substring(0, colon);
+            if (!p.isEmpty()) {
+                try {
+                    port = Integer.parseInt(p);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                if (port < 0 || port > 65535) {
+                    return null;
+                }
+            }
+        }
+        String host = authority;
+        for (int i = 0; i < authority.length(); i++) {
+            if (authority.charAt(i) >= 0x80) {
+                try {
+                    host = IDN.toASCII(authority);
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+                break;
+            }
+        }
+        host = host.toLowerCase(Locale.ROOT);
+        while (host.endsWith(".")) {
+            host = host.substring(0, host.length() - 1);
+        }
+        if (host.isEmpty()) {
+            return null;
+        }
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= '0' && c <= '9'
+                    || c == '.' || c == '-' || c == '_')) {
+                return null;
+            }
+        }
+
+        String fragment = null;
+        int hash = rest.indexOf('#');
+        if (hash >= 0) {
+            fragment = rest.substring(hash + 1);
+            rest = rest.substring(0, hash);
+        }
+        String query = null;
+        int question = rest.indexOf('?');
+        if (question >= 0) {
+            query = removeTracking(rest.substring(question + 1));
+            rest = rest.substring(0, question);
+        }
+        String path = rest.isEmpty() ? "/" : rest;
+
+        String youtubeId = getYoutubeId(host, path, query);
+        if (youtubeId != null) {
+            return new Link(text, YOUTUBE_URL + youtubeId, host, youtubeId);
+        }
+
+        StringBuilder url = new StringBuilder(text.length() + 16);
+        url.append(scheme).append("://");
+        if (userInfo != null) {
+            encode(userInfo, url);
+            url.append('@');
+        }
+        url.append(host);
+        if (port != -1 && port != defaultPort) {
+            url.append(':').append(port);
+        }
+        encode(path, url);
+        if (query != null) {
+            url.append('?');
+            encode(query, url);
+        }
+        // Fragments aren't sent to servers, except "#!" of AJAX applications
+        if (fragment != null && fragment.startsWith("!")) {
+            url.append('#');
+            encode(fragment, url);
+        }
+        return new Link(text, url.toString(), host, youtubeId);
+    }
+
+    private static boolean isSchemeChar(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean isURLChar(char c) {
+        return c > ' ' && c != 0x7f && "<>\"'`{}|\\^[]".indexOf(c) < 0
+                && !Character.isSpaceChar(c) && !Character.isISOControl(c);
+    }
+
+    /**
+     * Returns the end of the URL without trailing punctuation and unbalanced
+     * closing parentheses, e.g. of "(see http://example.com/)."
+     */
+    private static int trim(String text, int begin, int end) {
+        while (end > begin) {
+            char c = text.charAt(end - 1);
+            if (".,;:!?*".indexOf(c) >= 0) {
+                end--;
+            } else if (c == ')') {
+                int balance = 0;
+                for (int i = begin; i < end; i++) {
+                    if (text.charAt(i) == '(') {
+                        balance++;
+                    } else if (text.charAt(i) == ')') {
+                        balance--;
+                    }
+                }
+                if (balance >= 0) {
+                    break;
+                }
+                end--;
+            } else {
+                break;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * @return the query without tracking parameters or <code>null</code> if
+     * nothing is left
+     */
+    private static String removeTracking(String query) {
+        StringBuilder result = new StringBuilder(query.length());
+        for (String parameter : query.split("&")) {
+            if (parameter.isEmpty()) {
+                continue;
+            }
+            int eq = parameter.indexOf('=');
+            String name = (eq < 0 ? parameter : parameter.substring(0, eq))
+                    .toLowerCase(Locale.ROOT);
+            if (name.startsWith("utm_") || TRACKING_PARAMETERS.contains(name)) {
+                continue;
+            }
+            if (result.length() > 0) {
+                result.append('&');
+            }
+            result.append(parameter);
+        }
+        return result.length() == 0 ? null : result.toString();
+    }
+
+    private static String getYoutubeId(String host, String path, String query) {
+        String id = null;
+        if (host.equals("youtu.be") || host.equals("www.youtu.be")) {
+            id = segment(path, 1);
+        } else if (host.equals("youtube.com") || host.endsWith(".youtube.com")
+                || host.equals("youtube-nocookie.com")
+                || host.endsWith(".youtube-nocookie.com")) {
+            if (path.equals("/watch") || path.equals("/watch/")) {
+                if (query != null) {
+                    for (String parameter : query.split("&")) {
+                        if (parameter.startsWith("v=")) {
+                            id = parameter.substring(2);
+                            break;
+                        }
+                    }
+                }
+            } else {
+                for (String prefix : YOUTUBE_PATHS) {
+                    if (path.startsWith(prefix)) {
+                        id = segment(path, prefix.length());
+                        break;
+                    }
+                }
+            }
+        }
+        if (id == null || id.length() != 11) {
+            return null;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z'
+                    || c >= '0' && c <= '9' || c == '_' || c == '-')) {
+                return null;
+            }
+        }
+        return id;
+    }
+
+    private static String segment(String path, int from) {
+        int end = path.indexOf('/', from);
+        return end < 0 ? path.substring(from) : path.substring(from, end);
+    }
+
+    /**
+     * Appends the string with non-ASCII characters and invalid escapes
+     * percent-encoded, hex digits of escapes in upper case.
+     */
+    private static void encode(String s, StringBuilder out) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '%') {
+                if (i + 2 < s.length() && isHex(s.charAt(i + 1))
+                        && isHex(s.charAt(i + 2))) {
+                    out.append('%')
+                            .append(Character.toUpperCase(s.charAt(i + 1)))
+                            .append(Character.toUpperCase(s.charAt(i + 2)));
+                    i += 2;
+                } else {
+                    out.append("%25");
+                }
+            } else if (c > ' ' && c < 0x7f) {
+                out.append(c);
+            } else {
+                int end = Character.isHighSurrogate(c) && i + 1 < s.length()
+                        ? i + 2 : i + 1;
+                for (byte b : s.substring(i, end)
+                        .getBytes(StandardCharsets.UTF_8)) {
+                    out.append('%').append(HEX[(b >> 4) & 0xf])
+                            .append(HEX[b & 0xf]);
+                }
+                i = end - 1;
+            }
+        }
+    }
+
+    private static boolean isHex(char c) {
+        return c >= '0' && c <= '9' || c >= 'a' && c <= 'f'
+                || c >= 'A' && c <= 'F';
+    }
+}
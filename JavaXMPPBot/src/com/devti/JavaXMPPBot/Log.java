@@ -24,32 +24,163 @@ package com.devti.JavaXMPPBot;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
-import java.util.Formatter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.zip.GZIPOutputStream;
 
 /**
  * A Log object is used to log messages to a file.
+ * <p>
+ * Messages are put into a lock-free ring buffer and written to the file by a
+ * separate thread, so logging threads don't wait for disk I/O. The writer
+ * flushes the file when the buffer runs empty or at least every
+ * {@link #setFlushInterval(int) flush interval}. When the buffer is full
+ * the behaviour depends on the {@link OverflowPolicy}.
+ * <p>
+ * The writer rotates the log file when it grows over the size limit or gets
+ * older than the rotation interval: the file is renamed and a new one is
+ * opened right away, older files are shifted and the renamed file is
+ * compressed to <code>&lt;log&gt;.0.gz</code> by a separate thread.
  *
  * @author Mikhail Telnov <michael.telnov at gmail.com>
  */
 public class Log {
 
+    /**
+     * Defines what to do with a message when the buffer is full.
+     */
+    public enum OverflowPolicy {
+
+        /**
+         * Wait until the writer frees some space in the buffer.
+         */
+        BLOCK,
+        /**
+         * Drop the message. The number of dropped messages is written to the
+         * log as soon as there is room for it.
+         */
+        DROP;
+    }
+
+    private static final int CAPACITY = 8192;
+    private static final int COMPRESS_BUFFER_SIZE = 64 * 1024;
+
+    private static class Record {
+
+        private final long time;
+        private final Logger.Level severity;
+        private final String message;
+
+        public Record(long time, Logger.Level severity, String message) {
+            this.time = time;
+            this.severity = severity;
+            this.message = message;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        public CountingOutputStream(OutputStream out, long count) {
+            super(out);
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            long lastFlush = System.nanoTime();
+            boolean dirty = false;
+            while (true) {
+                Record record = poll();
+                if (record != null) {
+                    write(record);
+                    dirty = true;
+                }
+                long now = System.nanoTime();
+                if (dirty && (record == null
+                        || now - lastFlush >= flushInterval)) {
+                    flush();
+                    dirty = false;
+                    lastFlush = now;
+                }
+                if (record != null) {
+                    continue;
+                }
+                if (closed) {
+                    if (isEmpty()) {
+                        break;
+                    }
+                    continue;
+                }
+                // Wait for new messages
+                sleeping = true;
+                if (isEmpty() && !closed) {
+                    LockSupport.parkNanos(this, flushInterval);
+                }
+                sleeping = false;
+            }
+            closeFile();
+        }
+    }
+
     private final Path logPath;
     private final File logFile;
+    private CountingOutputStream stream;
     private BufferedWriter writer;
-    private Formatter formatter;
-    private final String format;
-    private final long sizeLimit;
-    private final int rotateCount;
+    private final SimpleDateFormat dateFormat;
+    private final StringBuilder line;
+    private long opened;
+    private volatile long sizeLimit;
+    private volatile int rotateCount;
+    private volatile long rotateInterval;
+    private ExecutorService compressor;
+    private final AtomicReferenceArray<Record> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head;
+    private long tail;
+    private final AtomicLong dropped;
+    private long reportedDropped;
+    private final Thread writerThread;
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+    private volatile OverflowPolicy overflowPolicy;
+    private volatile long flushInterval;
+    private volatile Logger.Level level;
 
     /**
      * Create a Log object to log messages to a file.
@@ -60,71 +191,252 @@ public class Log {
     public Log(Path log) throws IOException {
         sizeLimit = 10 * 1024 * 1024; // 10MB
         rotateCount = 10;
+        rotateInterval = 0;
         logPath = log;
-        writer = Files.newBufferedWriter(logPath,
-                StandardCharsets.UTF_8,
+        logFile = logPath.toFile();
+        openFile();
+        dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSZ");
+        line = new StringBuilder();
+        slots = new AtomicReferenceArray<>(CAPACITY);
+        sequences = new AtomicLongArray(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        head = new AtomicLong();
+        tail = 0;
+        dropped = new AtomicLong();
+        overflowPolicy = OverflowPolicy.BLOCK;
+        flushInterval = TimeUnit.SECONDS.toNanos(1);
+        level = Logger.Level.INFO;
+        writerThread = new Thread(new Writer(),
+                getClass().getName() + "(" + logPath.getFileName() + ")");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Sets minimum level of messages written to the log. {@link Logger}
+     * objects check it before building messages.
+     *
+     * @param level minimum level
+     */
+    public void setLevel(Logger.Level level) {
+        this.level = level;
+    }
+
+    /**
+     * Returns minimum level of messages written to the log.
+     *
+     * @return minimum level
+     */
+    public Logger.Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Sets log rotation parameters.
+     *
+     * @param sizeLimit maximum size of the log file in bytes, 0 disables
+     * rotation by size
+     * @param rotateCount number of compressed old log files to keep, 0
+     * means old log files are deleted
+     * @param rotateInterval maximum age of the log file in seconds, 0
+     * disables rotation by time
+     */
+    public void setRotation(long sizeLimit, int rotateCount, int rotateInterval) {
+        this.sizeLimit = Math.max(sizeLimit, 0);
+        this.rotateCount = Math.max(rotateCount, 0);
+        this.rotateInterval = TimeUnit.SECONDS.toMillis(Math.max(rotateInterval, 0));
+    }
+
+    /**
+     * Sets what to do with a message when the buffer is full.
+     *
+     * @param policy overflow policy
+     */
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        overflowPolicy = policy;
+    }
+
+    /**
+     * Sets maximum time between writing a message and flushing it to the
+     * file when the bot logs continuously.
+     *
+     * @param millis time in milliseconds
+     */
+    public void setFlushInterval(int millis) {
+        flushInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(millis, 1));
+    }
+
+    /**
+     * Returns number of messages which have been dropped because the buffer
+     * was full.
+     *
+     * @return number of dropped messages
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private void openFile() throws IOException {
+        stream = new CountingOutputStream(Files.newOutputStream(logPath,
                 new OpenOption[]{
                     StandardOpenOption.CREATE,
                     StandardOpenOption.APPEND,
                     StandardOpenOption.WRITE
-                });
-        logFile = logPath.toFile();
-        format = "%1$tY-%1$tm-%1$td %1tH:%1$tM:%1$tS.%1$tL%1$tz [%-5s] %s\n";
-        formatter = new Formatter(writer);
+                }), Files.size(logPath));
+        writer = new BufferedWriter(new OutputStreamWriter(stream,
+                StandardCharsets.UTF_8), 64 * 1024);
+        // Creation time isn't kept by many file systems, so the age of an
+        // existing log is counted from the last rotation if it's known
+        opened = System.currentTimeMillis();
+        Path last = Paths.get(logFile.toString() + ".0.gz");
+        if (stream.count > 0 && Files.exists(last)) {
+            opened = Math.min(opened,
+                    Files.getLastModifiedTime(last).toMillis());
+        }
     }
 
-    private synchronized void rotate() throws IOException {
-        // Rotate old log files if exists
-        if (rotateCount > 0) {
-            Files.deleteIfExists(Paths.get(logFile.toString() + "."
-                    + (rotateCount - 1) + ".gz"));
-            for (int i = rotateCount - 2; i >= 0; i--) {
-                Path path = Paths.get(logFile.toString() + "." + i + ".gz");
-                if (Files.exists(path)) {
-                    Files.move(path,
-                            Paths.get(logFile.toString() + "." + (i + 1) + ".gz"));
-                }
+    private void closeFile() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.err.println("Can't close log file: "
+                    + e.getLocalizedMessage());
+        }
+        if (compressor != null) {
+            compressor.shutdown();
+            try {
+                compressor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
-        // Close current log file
-        formatter.close();
+    }
+
+    private void rotate() throws IOException {
+        // Close current log file and put it aside
         writer.close();
-        // Compress current log file
-        if (rotateCount > 0) {
-            byte[] buffer = new byte[1024];
-            try (GZIPOutputStream out = new GZIPOutputStream(
-                    new FileOutputStream(logFile.toString() + ".0.gz"));
-                    FileInputStream in = new FileInputStream(logFile)) {
-                int len;
-                while ((len = in.read(buffer)) > 0) {
-                    out.write(buffer, 0, len);
+        final Path rotated = Paths.get(logFile.toString() + "."
+                + System.currentTimeMillis());
+        try {
+            Files.move(logPath, rotated);
+        } finally {
+            // Open a new log file
+            openFile();
+        }
+        // Compress rotated file in background
+        final int count = rotateCount;
+        if (compressor == null) {
+            compressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, writerThread.getName()
+                            + "-compressor");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        compressor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compress(rotated, count);
+                } catch (IOException e) {
+                    System.err.println("Can't compress rotated log file: "
+                            + e.getLocalizedMessage());
                 }
-                out.finish();
             }
+        });
+    }
+
+    private void compress(Path rotated, int count) throws IOException {
+        if (count <= 0) {
+            Files.delete(rotated);
+            return;
         }
-        // Delete current log file
-        Files.delete(logPath);
-        // Open a new log file
-        writer = Files.newBufferedWriter(logPath,
-                StandardCharsets.UTF_8,
-                new OpenOption[]{
-                    StandardOpenOption.CREATE,
-                    StandardOpenOption.APPEND,
-                    StandardOpenOption.WRITE
-                });
-        formatter = new Formatter(writer);
+        // Rotate old log files if exists
+        Files.deleteIfExists(Paths.get(logFile.toString() + "."
+                + (count - 1) + ".gz"));
+        for (int i = count - 2; i >= 0; i--) {
+            Path path = Paths.get(logFile.toString() + "." + i + ".gz");
+            if (Files.exists(path)) {
+                Files.move(path,
+                        Paths.get(logFile.toString() + "." + (i + 1) + ".gz"));
+            }
+        }
+        // Compress rotated log file
+        byte[] buffer = new byte[COMPRESS_BUFFER_SIZE];
+        try (GZIPOutputStream out = new GZIPOutputStream(
+                Files.newOutputStream(Paths.get(logFile.toString() + ".0.gz")),
+                COMPRESS_BUFFER_SIZE);
+                InputStream in = Files.newInputStream(rotated)) {
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                out.write(buffer, 0, len);
+            }
+            out.finish();
+        }
+        Files.delete(rotated);
     }
 
-    /**
-     * Write a log message with specified severity. This method also rotates log
-     * files if needed.
-     *
-     * @param severity Severity of the message (see {@link Logger.Level})
-     * @param message The string message to log
-     */
-    public synchronized void log(Logger.Level severity, String message) {
+    private boolean offer(Record record) {
+        long pos = head.get();
+        while (true) {
+            int i = (int) (pos & (CAPACITY - 1));
+            long diff = sequences.get(i) - pos;
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    slots.set(i, record);
+                    sequences.lazySet(i, pos + 1);
+                    return true;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    private Record poll() {
+        int i = (int) (tail & (CAPACITY - 1));
+        if (sequences.get(i) != tail + 1) {
+            return null;
+        }
+        Record record = slots.get(i);
+        slots.set(i, null);
+        sequences.lazySet(i, tail + CAPACITY);
+        tail++;
+        return record;
+    }
+
+    private boolean isEmpty() {
+        return sequences.get((int) (tail & (CAPACITY - 1))) != tail + 1;
+    }
+
+    private void write(Record record) {
+        long lost = dropped.get();
+        if (lost != reportedDropped) {
+            long count = lost - reportedDropped;
+            reportedDropped = lost;
+            write(new Record(record.time, Logger.Level.WARN, count
+                    + " log messages have been dropped because the log "
+                    + "buffer was full"));
+        }
         // Rotate log file if needed
-        if (sizeLimit > 0 && logFile.length() > sizeLimit) {
+        if ((sizeLimit > 0 && stream.count > sizeLimit)
+                || (rotateInterval > 0 && stream.count > 0
+                && record.time - opened >= rotateInterval)) {
             try {
                 rotate();
             } catch (IOException e) {
@@ -133,8 +445,70 @@ public class Log {
             }
         }
         // Write down a log message
-        formatter.format(format, System.currentTimeMillis(), severity, message);
-        formatter.flush();
+        line.setLength(0);
+        line.append(dateFormat.format(new Date(record.time))).append(" [");
+        line.append(record.severity);
+        for (int i = record.severity.name().length(); i < 5; i++) {
+            line.append(' ');
+        }
+        line.append("] ").append(record.message).append('\n');
+        try {
+            writer.append(line);
+        } catch (IOException e) {
+            System.err.println("Can't write to log file: "
+                    + e.getLocalizedMessage());
+        }
+    }
+
+    private void flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("Can't flush log file: "
+                    + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Write a log message with specified severity. This method doesn't wait
+     * for the message to be written, log files are rotated by the writer
+     * thread if needed.
+     *
+     * @param severity Severity of the message (see {@link Logger.Level})
+     * @param message The string message to log
+     */
+    public void log(Logger.Level severity, String message) {
+        Record record = new Record(System.currentTimeMillis(), severity,
+                message);
+        if (closed) {
+            System.err.println(message);
+            return;
+        }
+        while (!offer(record)) {
+            if (overflowPolicy == OverflowPolicy.DROP || closed) {
+                dropped.incrementAndGet();
+                return;
+            }
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        if (sleeping) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    /**
+     * Writes all buffered messages and closes the log file. Messages logged
+     * after closing are printed to the standard error stream.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
 }
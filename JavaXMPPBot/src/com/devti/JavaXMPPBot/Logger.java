@@ -77,8 +77,22 @@ public class Logger {
         ERROR;
     }
 
+    /**
+     * Supplies a message which is built only if it is going to be logged.
+     */
+    public interface MessageSupplier {
+
+        /**
+         * Builds the message.
+         *
+         * @return the string message
+         */
+        public String get();
+    }
+
     private final Log log;
     private final String prefix;
+    private volatile Level level;
 
     /**
      * Create a {@link Logger} object for writing messages to the {@link Log}
@@ -102,12 +116,73 @@ public class Logger {
         this.prefix = prefix;
     }
 
+    /**
+     * Sets minimum level of messages written by this logger. By default the
+     * level of the {@link Log} is used.
+     *
+     * @param level minimum level or <code>null</code> to use the level of
+     * the {@link Log}
+     */
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * Returns the level set by {@link #setLevel(Level)}.
+     *
+     * @return minimum level or <code>null</code> if the level of the
+     * {@link Log} is used
+     */
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns <code>true</code> if messages of the specified level are
+     * written. Check it before building expensive messages.
+     *
+     * @param severity level of messages
+     * @return <code>true</code> if messages of this level are written
+     */
+    public boolean isEnabled(Level severity) {
+        Level threshold = level;
+        if (threshold == null) {
+            threshold = log.getLevel();
+        }
+        return severity.compareTo(threshold) >= 0;
+    }
+
+    /**
+     * Returns <code>true</code> if DEBUG messages are written.
+     *
+     * @return <code>true</code> if DEBUG messages are written
+     */
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
     private void log(Logger.Level severity, String message) {
-        log.log(severity, prefix + message);
+        if (isEnabled(severity)) {
+            log.log(severity, prefix + message);
+        }
+    }
+
+    private void log(Logger.Level severity, String message, Exception e) {
+        if (isEnabled(severity)) {
+            log.log(severity, prefix + message + ": " + e.getLocalizedMessage());
+        }
     }
 
     private void log(Logger.Level severity, String format, Object... args) {
-        log(severity, String.format(format, args));
+        if (isEnabled(severity)) {
+            log.log(severity, prefix + String.format(format, args));
+        }
+    }
+
+    private void log(Logger.Level severity, MessageSupplier message) {
+        if (isEnabled(severity)) {
+            log.log(severity, prefix + message.get());
+        }
     }
 
     /**
@@ -126,7 +201,7 @@ public class Logger {
      * @param e The exception
      */
     public void err(String message, Exception e) {
-        log(Level.ERROR, message + ": " + e.getLocalizedMessage());
+        log(Level.ERROR, message, e);
     }
 
     /**
@@ -152,6 +227,15 @@ public class Logger {
         log(Level.ERROR, format, args);
     }
 
+    /**
+     * Log an ERROR message built by the supplier only if this level is enabled.
+     *
+     * @param message The message supplier
+     */
+    public void err(MessageSupplier message) {
+        log(Level.ERROR, message);
+    }
+
     /**
      * Log a WARNING message.
      *
@@ -168,7 +252,7 @@ public class Logger {
      * @param e The exception
      */
     public void warn(String message, Exception e) {
-        log(Level.WARN, message + ": " + e.getLocalizedMessage());
+        log(Level.WARN, message, e);
     }
 
     /**
@@ -194,6 +278,15 @@ public class Logger {
         log(Level.WARN, format, args);
     }
 
+    /**
+     * Log a WARNING message built by the supplier only if this level is enabled.
+     *
+     * @param message The message supplier
+     */
+    public void warn(MessageSupplier message) {
+        log(Level.WARN, message);
+    }
+
     /**
      * Log an INFO message.
      *
@@ -210,7 +303,7 @@ public class Logger {
      * @param e The exception
      */
     public void info(String message, Exception e) {
-        log(Level.INFO, message + ": " + e.getLocalizedMessage());
+        log(Level.INFO, message, e);
     }
 
     /**
@@ -236,6 +329,15 @@ public class Logger {
         log(Level.INFO, format, args);
     }
 
+    /**
+     * Log an INFO message built by the supplier only if this level is enabled.
+     *
+     * @param message The message supplier
+     */
+    public void info(MessageSupplier message) {
+        log(Level.INFO, message);
+    }
+
     /**
      * Log a DEBUG message.
      *
@@ -252,7 +354,7 @@ public class Logger {
      * @param e The exception
      */
     public void debug(String message, Exception e) {
-        log(Level.DEBUG, message + ": " + e.getLocalizedMessage());
+        log(Level.DEBUG, message, e);
     }
 
     /**
@@ -278,4 +380,13 @@ public class Logger {
         log(Level.DEBUG, format, args);
     }
 
+    /**
+     * Log a DEBUG message built by the supplier only if this level is enabled.
+     *
+     * @param message The message supplier
+     */
+    public void debug(MessageSupplier message) {
+        log(Level.DEBUG, message);
+    }
+
 }
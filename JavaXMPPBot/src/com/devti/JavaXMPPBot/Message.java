@@ -23,6 +23,15 @@
 
 package com.devti.JavaXMPPBot;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * Represents an incoming message
  * 
@@ -100,6 +109,15 @@ public class Message {
      *
      */
     public boolean isForMe;
+    /**
+     * XML namespaces of extensions attached to the message (e.g.
+     * 'urn:xmpp:delay' for delayed delivery)
+     */
+    public Set<String> extensions;
+    private Map<String, List<String>> matches;
+    private String matchedBody;
+    private List<Link> links;
+    private String linksBody;
 
     /**
      *
@@ -119,6 +137,66 @@ public class Message {
         room = null;
         nick = null;
         isForMe = false;
+        extensions = Collections.emptySet();
+    }
+
+    /**
+     * Returns <code>true</code> if the body looks like it contains an URL.
+     * It is a cheap check which is used to skip messages without links
+     * before matching them with URL patterns.
+     *
+     * @return <code>true</code> if the body contains "://"
+     */
+    public boolean hasURL() {
+        return body != null && body.indexOf("://") > 0;
+    }
+
+    /**
+     * Finds all matches of the pattern in the body. Results are remembered,
+     * so modules using the same pattern (e.g. for tags) scan the body only
+     * once.
+     *
+     * @param pattern the pattern
+     * @param group number of the group to return, 0 for the whole match
+     * @return unmodifiable list of found substrings
+     */
+    public List<String> find(Pattern pattern, int group) {
+        if (body == null) {
+            return Collections.emptyList();
+        }
+        if (matches == null || matchedBody != body) {
+            matches = new HashMap<>();
+            matchedBody = body;
+        }
+        String key = group + ":" + pattern.flags() + ":" + pattern.pattern();
+        List<String> result = matches.get(key);
+        if (result == null) {
+            List<String> found = new ArrayList<>();
+            Matcher matcher = pattern.matcher(body);
+            while (matcher.find()) {
+                found.add(matcher.group(group));
+            }
+            result = Collections.unmodifiableList(found);
+            matches.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns HTTP(S) URLs found in the body by {@link LinkExtractor}. The
+     * body is scanned once, modules get the same canonical links.
+     *
+     * @return unmodifiable list of links in order of appearance
+     */
+    public List<Link> getLinks() {
+        if (body == null) {
+            return Collections.emptyList();
+        }
+        if (links == null || linksBody != body) {
+            links = Collections.unmodifiableList(LinkExtractor.extract(body));
+            linksBody = body;
+        }
+        return links;
     }
 
 }
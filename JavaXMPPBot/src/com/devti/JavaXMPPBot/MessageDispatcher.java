@@ -0,0 +1,411 @@
+/*
+ *  JavaXMPPBot - XMPP(Jabber) bot written in Java
+ *  Copyright 2010 Mikhail Telnov <michael.telnov@gmail.com>
+ *
+ *  This file is part of JavaXMPPBot.
+ *
+ *  JavaXMPPBot is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JavaXMPPBot is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JavaXMPPBot.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  $Id$
+ *
+ */
+package com.devti.JavaXMPPBot;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches incoming messages to a bounded pool of worker threads.
+ * <p>
+ * Every message is dispatched with a key (the bare JID of the room or of the
+ * sender). Messages with the same key are processed one by one in order of
+ * arrival, messages with different keys are processed in parallel. The total
+ * number of queued messages is limited, see {@link OverloadPolicy} for what
+ * happens when the limit is reached.
+ *
+ * @author Mikhail Telnov <michael.telnov@gmail.com>
+ */
+public class MessageDispatcher {
+
+    /**
+     * Defines what to do with a new message when the queue is full.
+     */
+    public enum OverloadPolicy {
+
+        /**
+         * Drop the oldest queued groupchat message to make room for the new
+         * one. If there are no groupchat messages in the queue, the new
+         * message is rejected.
+         */
+        DROP_OLDEST_GROUPCHAT,
+        /**
+         * Reject the new message.
+         */
+        REJECT,
+        /**
+         * Process the new message in the thread which receives packets. It
+         * slows down reading from the XMPP connection until the queue drains,
+         * but the message can be processed out of order with queued messages
+         * from the same room.
+         */
+        CALLER_RUNS;
+    }
+
+    private static class Task {
+
+        private final Runnable runnable;
+        private final boolean groupchat;
+        private final long sequence;
+
+        public Task(Runnable runnable, boolean groupchat, long sequence) {
+            this.runnable = runnable;
+            this.groupchat = groupchat;
+            this.sequence = sequence;
+        }
+    }
+
+    private class KeyQueue implements Runnable {
+
+        private final String key;
+        private final ArrayDeque<Task> tasks;
+
+        public KeyQueue(String key) {
+            this.key = key;
+            tasks = new ArrayDeque<>();
+        }
+
+        @Override
+        public void run() {
+            Task task;
+            synchronized (lock) {
+                task = tasks.poll();
+                if (task == null) {
+                    queues.remove(key);
+                    return;
+                }
+                pending--;
+            }
+            try {
+                task.runnable.run();
+            } catch (RuntimeException e) {
+                logger.warn("An error occurred during process a message", e);
+            } finally {
+                synchronized (lock) {
+                    completed++;
+                    // Give other keys a chance before the next message
+                    if (tasks.isEmpty() || executor.isShutdown()) {
+                        pending -= tasks.size();
+                        tasks.clear();
+                        queues.remove(key);
+                    } else {
+                        executor.execute(this);
+                    }
+                }
+            }
+        }
+    }
+
+    private final Object lock;
+    private final Logger logger;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, KeyQueue> queues;
+    private int capacity;
+    private OverloadPolicy policy;
+    private int pending;
+    private int maxPending;
+    private long sequence;
+    private long submitted;
+    private long completed;
+    private long rejected;
+    private long dropped;
+    private long callerRuns;
+
+    /**
+     * Creates a dispatcher with 4 worker threads, queue for 500 messages and
+     * {@link OverloadPolicy#DROP_OLDEST_GROUPCHAT} overload policy.
+     *
+     * @param bot the bot this dispatcher works for
+     */
+    public MessageDispatcher(final Bot bot) {
+        lock = new Object();
+        logger = new Logger(bot.getLog(), "[MD] ");
+        queues = new HashMap<>();
+        capacity = 500;
+        policy = OverloadPolicy.DROP_OLDEST_GROUPCHAT;
+        executor = new ThreadPoolExecutor(4, 4, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger number = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r,
+                                MessageProcessor.class.getName() + "("
+                                + bot.getBotId() + ")-"
+                                + number.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Changes parameters of the dispatcher.
+     *
+     * @param threads maximum number of worker threads
+     * @param queueSize maximum number of queued messages
+     * @param overloadPolicy what to do when the queue is full
+     */
+    public void configure(int threads, int queueSize,
+            OverloadPolicy overloadPolicy) {
+        if (threads < 1) {
+            threads = 1;
+        }
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+        synchronized (lock) {
+            capacity = queueSize < 1 ? 1 : queueSize;
+            policy = overloadPolicy;
+        }
+    }
+
+    /**
+     * Queues the task for processing after all previously queued tasks with
+     * the same key.
+     *
+     * @param key the bare JID of the room or of the sender
+     * @param groupchat <code>true</code> if the task processes a groupchat
+     * message
+     * @param task the task to run
+     * @return <code>false</code> if the task has been rejected
+     */
+    public boolean dispatch(String key, boolean groupchat, Runnable task) {
+        synchronized (lock) {
+            if (executor.isShutdown()) {
+                rejected++;
+                return false;
+            }
+            boolean runHere = false;
+            if (pending >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST_GROUPCHAT:
+                        if (!dropOldestGroupchat()) {
+                            rejected++;
+                            return false;
+                        }
+                        break;
+                    case REJECT:
+                        rejected++;
+                        return false;
+                    case CALLER_RUNS:
+                        callerRuns++;
+                        runHere = true;
+                        break;
+                }
+            }
+            if (!runHere) {
+                KeyQueue queue = queues.get(key);
+                boolean idle = (queue == null);
+                if (idle) {
+                    queue = new KeyQueue(key);
+                    queues.put(key, queue);
+                }
+                queue.tasks.add(new Task(task, groupchat, sequence++));
+                submitted++;
+                pending++;
+                if (pending > maxPending) {
+                    maxPending = pending;
+                }
+                if (idle) {
+                    executor.execute(queue);
+                }
+                return true;
+            }
+        }
+        // The queue is full and policy is CALLER_RUNS
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            logger.warn("An error occurred during process a message", e);
+        }
+        return true;
+    }
+
+    private boolean dropOldestGroupchat() {
+        Iterator<Task> oldest = null;
+        Task oldestTask = null;
+        for (KeyQueue queue : queues.values()) {
+            Iterator<Task> i = queue.tasks.iterator();
+            while (i.hasNext()) {
+                Task t = i.next();
+                if (t.groupchat) {
+                    if (oldestTask == null || t.sequence < oldestTask.sequence) {
+                        oldestTask = t;
+                        oldest = i;
+                    }
+                    break;
+                }
+            }
+        }
+        if (oldest == null) {
+            return false;
+        }
+        oldest.remove();
+        pending--;
+        dropped++;
+        return true;
+    }
+
+    /**
+     * Stops accepting new messages. Messages which are being processed right
+     * now will be completed, the rest of the queue is discarded.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Returns number of messages waiting for processing.
+     *
+     * @return number of queued messages
+     */
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return pending;
+        }
+    }
+
+    /**
+     * Returns maximum number of queued messages since start.
+     *
+     * @return maximum number of queued messages
+     */
+    public int getMaxQueueDepth() {
+        synchronized (lock) {
+            return maxPending;
+        }
+    }
+
+    /**
+     * Returns maximum number of queued messages.
+     *
+     * @return queue size
+     */
+    public int getQueueSize() {
+        synchronized (lock) {
+            return capacity;
+        }
+    }
+
+    /**
+     * Returns the current overload policy.
+     *
+     * @return overload policy
+     */
+    public OverloadPolicy getOverloadPolicy() {
+        synchronized (lock) {
+            return policy;
+        }
+    }
+
+    /**
+     * Returns number of worker threads which are processing messages right
+     * now.
+     *
+     * @return number of active worker threads
+     */
+    public int getActiveThreads() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Returns maximum number of worker threads.
+     *
+     * @return maximum number of worker threads
+     */
+    public int getMaxThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Returns number of messages which have been queued since start.
+     *
+     * @return number of queued messages
+     */
+    public long getSubmittedCount() {
+        synchronized (lock) {
+            return submitted;
+        }
+    }
+
+    /**
+     * Returns number of messages which have been processed since start.
+     *
+     * @return number of processed messages
+     */
+    public long getCompletedCount() {
+        synchronized (lock) {
+            return completed;
+        }
+    }
+
+    /**
+     * Returns number of messages which have been rejected since start.
+     *
+     * @return number of rejected messages
+     */
+    public long getRejectedCount() {
+        synchronized (lock) {
+            return rejected;
+        }
+    }
+
+    /**
+     * Returns number of queued groupchat messages which have been dropped
+     * since start.
+     *
+     * @return number of dropped messages
+     */
+    public long getDroppedCount() {
+        synchronized (lock) {
+            return dropped;
+        }
+    }
+
+    /**
+     * Returns number of messages which have been processed by the receiving
+     * thread because the queue was full.
+     *
+     * @return number of messages processed by the receiving thread
+     */
+    public long getCallerRunsCount() {
+        synchronized (lock) {
+            return callerRuns;
+        }
+    }
+}
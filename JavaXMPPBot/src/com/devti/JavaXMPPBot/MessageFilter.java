@@ -0,0 +1,145 @@
+/*
+ *  JavaXMPPBot - XMPP(Jabber) bot written in Java
+ *  Copyright 2010 Mikhail Telnov <michael.telnov@gmail.com>
+ *
+ *  This file is part of JavaXMPPBot.
+ *
+ *  JavaXMPPBot is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JavaXMPPBot is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JavaXMPPBot.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  $Id$
+ *
+ */
+package com.devti.JavaXMPPBot;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Describes which messages a {@link Module} is interested in.
+ * <p>
+ * Filters are immutable, every method returns a new filter, e.g.
+ * <code>MessageFilter.ALL.types(Message.Type.groupchat).withURL()</code>.
+ * Messages which don't pass the filter of a module aren't passed to
+ * {@link Module#processMessage(Message)} of that module.
+ *
+ * @author Mikhail Telnov <michael.telnov@gmail.com>
+ */
+public final class MessageFilter {
+
+    /**
+     * Passes all messages.
+     */
+    public static final MessageFilter ALL = new MessageFilter(
+            EnumSet.allOf(Message.Type.class), null, false, false);
+    /**
+     * Passes nothing.
+     */
+    public static final MessageFilter NONE = new MessageFilter(
+            EnumSet.noneOf(Message.Type.class), null, false, false);
+
+    private final EnumSet<Message.Type> types;
+    private final Set<String> rooms;
+    private final boolean url;
+    private final boolean forMe;
+
+    private MessageFilter(EnumSet<Message.Type> types, Set<String> rooms,
+            boolean url, boolean forMe) {
+        this.types = types;
+        this.rooms = rooms;
+        this.url = url;
+        this.forMe = forMe;
+    }
+
+    /**
+     * Returns a filter which passes only messages of the specified types.
+     *
+     * @param types message types
+     * @return new filter
+     */
+    public MessageFilter types(Message.Type... types) {
+        EnumSet<Message.Type> t = EnumSet.noneOf(Message.Type.class);
+        t.addAll(Arrays.asList(types));
+        t.retainAll(this.types);
+        return new MessageFilter(t, rooms, url, forMe);
+    }
+
+    /**
+     * Returns a filter which passes groupchat messages only from the
+     * specified rooms. Private messages aren't affected.
+     *
+     * @param rooms bare JIDs of rooms
+     * @return new filter
+     */
+    public MessageFilter rooms(String... rooms) {
+        Set<String> r = new HashSet<>();
+        for (String room : rooms) {
+            if (!room.trim().isEmpty()) {
+                r.add(room.trim().toLowerCase());
+            }
+        }
+        return new MessageFilter(types, Collections.unmodifiableSet(r), url,
+                forMe);
+    }
+
+    /**
+     * Returns a filter which passes only messages containing URLs.
+     *
+     * @return new filter
+     */
+    public MessageFilter withURL() {
+        return new MessageFilter(types, rooms, true, forMe);
+    }
+
+    /**
+     * Returns a filter which passes only messages addressed to the bot:
+     * private messages and groupchat messages starting with the bot's nick.
+     *
+     * @return new filter
+     */
+    public MessageFilter forMe() {
+        return new MessageFilter(types, rooms, url, true);
+    }
+
+    /**
+     * Returns <code>true</code> if the filter passes nothing.
+     *
+     * @return <code>true</code> if the filter passes nothing
+     */
+    public boolean isEmpty() {
+        return types.isEmpty();
+    }
+
+    /**
+     * Checks the message.
+     *
+     * @param message the message
+     * @return <code>true</code> if the message passes the filter
+     */
+    public boolean accepts(Message message) {
+        if (!types.contains(message.type)) {
+            return false;
+        }
+        if (forMe && !message.isForMe) {
+            return false;
+        }
+        if (rooms != null && message.room != null
+                && !rooms.contains(message.room.toLowerCase())) {
+            return false;
+        }
+        return !url || message.hasURL();
+    }
+}
@@ -23,80 +23,43 @@
 package com.devti.JavaXMPPBot;
 
 import org.jivesoftware.smack.util.StringUtils;
-import org.w3c.dom.DOMException;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
-public class MessageProcessor extends Thread {
+public class MessageProcessor implements Runnable {
 
-    private final Node xmppMessage;
+    private final Message message;
     private final Bot bot;
     private final Logger logger;
 
-    public MessageProcessor(Bot bot, Node message) {
+    public MessageProcessor(Bot bot, Message message) {
         this.bot = bot;
-        this.xmppMessage = message;
+        this.message = message;
         this.logger = new Logger(bot.getLog(), "[MP] ");
-        this.setName(this.getClass().getName() + "(" + bot.getBotId() + ")");
     }
 
     @Override
     public void run() {
-        String from, to, type;
-        String body = "";
-
-        // Extract fields from the message
-        try {
-            from = xmppMessage.getAttributes().getNamedItem("from").getTextContent();
-            to = xmppMessage.getAttributes().getNamedItem("to").getTextContent();
-            if (xmppMessage.getAttributes().getNamedItem("type") == null) {
-                type = "normal";
-            } else {
-                type = xmppMessage.getAttributes().getNamedItem("type").getTextContent();
-            }
-            NodeList nl = xmppMessage.getChildNodes();
-            for (int i = 0; i < nl.getLength(); i++) {
-                if (nl.item(i).getNodeName().equals("body")) {
-                    if (nl.item(i).getAttributes().getNamedItem("xmlns") == null) {
-                        body = nl.item(i).getTextContent();
-                        break;
-                    }
-                }
-            }
-        } catch (DOMException e) {
-            logger.warn("An error occurred during process a message", e);
-            return;
-        }
+        final String from = message.from;
+        String body = message.body;
 
         // Ignore message if sender in the ignore list
         if (bot.isIgnored(from)) {
-            logger.debug("Ignore message from " + from);
+            logger.debug(new Logger.MessageSupplier() {
+                @Override
+                public String get() {
+                    return "Ignore message from " + from;
+                }
+            });
             return;
         }
 
-        Message message = new Message(from, to, body);
-        message.type = Message.Type.valueOf(type);
-
         // If message body starts with command prefix process it as a command
-        if (body.startsWith(bot.getCommandPrefix())) {
-            String command = body.substring(bot.getCommandPrefix().length());
-            if (command.matches("^[A-z_]+ .*")
-                    || command.matches("^[A-z_]+$")) {
-                String args = command.replaceFirst("^[A-z_]+ *", "");
-                command = command.substring(0,
-                        command.length() - args.length()).trim();
-                message.command = command;
-                message.commandArgs = args;
-            }
-        }
+        CommandRouter router = bot.getCommandRouter();
+        router.parse(message, bot.getCommandPrefix());
 
         String jid = StringUtils.parseBareAddress(message.from);
-        String[] rooms = bot.getRooms();
-        for (String room : rooms) {
-            if (jid.equalsIgnoreCase(room)) {
-                message.room = jid;
-                break;
-            }
+        Room room = bot.getRoom(jid);
+        if (room != null) {
+            message.room = jid;
         }
 
         // Private message
@@ -108,40 +71,51 @@ public class MessageProcessor extends Thread {
         } else {
             message.nick = StringUtils.parseResource(message.from);
             message.fromJID = StringUtils.parseBareAddress(
-                    bot.getRoom(message.room).getRealJID(message.from));
-            message.isForMe = (message.body.startsWith(
-                    bot.getNickname(message.room)));
+                    room.getRealJID(message.from));
+            message.isForMe = (message.body.startsWith(room.getNickname()));
         }
 
         // Ignore self messages
-        if ((message.type == Message.Type.groupchat)
-                && message.nick.equals(bot.getNickname(message.room))) {
+        if ((message.type == Message.Type.groupchat) && (room != null)
+                && message.nick.equals(room.getNickname())) {
             logger.debug("Ignore self message");
             return;
         }
 
         // Process through all modules if it isn't command
         if (message.command == null) {
-            String[] modules = bot.getModules();
-            for (String module : modules) {
-                if (bot.getModule(module).processMessage(message)) {
-                    break;
-                }
-            }
+            bot.getModulePipeline().process(message);
             return;
         }
 
         // Search specified command in registred commands
-        Command command = bot.getCommand(message.command);
+        Command command = router.resolve(message.command);
         if (command == null) {
-            bot.sendReply(message, "Command '" + message.command + "' isn't found.");
+            String[] candidates = router.complete(message.command);
+            if (candidates.length > 1) {
+                StringBuilder sb = new StringBuilder();
+                for (String candidate : candidates) {
+                    sb.append(sb.length() == 0 ? "" : ", ").append(candidate);
+                }
+                bot.sendReply(message, "Command '" + message.command
+                        + "' is ambiguous: " + sb + ".");
+            } else {
+                bot.sendReply(message, "Command '" + message.command + "' isn't found.");
+            }
             return;
         }
         if (command.ownerOnly && !bot.isOwner(message.fromJID)) {
             bot.sendReply(message, "This command isn't allowed to you.");
             return;
         }
-        command.module.processCommand(message);
+        // Modules see the full name even if an alias or abbreviation was used
+        message.command = command.command;
+        long started = System.nanoTime();
+        try {
+            command.module.processCommand(message);
+        } finally {
+            router.record(command, System.nanoTime() - started);
+        }
     }
 
 }
@@ -22,15 +22,21 @@
  */
 package com.devti.JavaXMPPBot;
 
+import java.sql.Driver;
 import java.util.HashMap;
 import java.util.Map;
 
 public class Module {
 
+    // Used for SQLite DBs unless db-pragmas is set, unsupported ones are logged
+    private static final String SQLITE_PRAGMAS
+            = "journal_mode=WAL;synchronous=NORMAL;cache_size=8000;mmap_size=268435456";
+
     protected final Bot bot;
     protected final Command[] commands;
     protected final Map<String, String> config;
     protected final Logger log;
+    private final MessageFilter messageFilter;
 
     public Module(Bot bot, Map<String, String> cfg) {
         this.bot = bot;
@@ -38,6 +44,28 @@ public class Module {
                 "[" + this.getClass().getSimpleName() + "] ");
         config = new HashMap<>(cfg);
         commands = new Command[0];
+        if (cfg.get("log-level") != null) {
+            try {
+                log.setLevel(Logger.Level.valueOf(
+                        cfg.get("log-level").trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                log.warn("Invalid log level '%s'", cfg.get("log-level"));
+            }
+        }
+        MessageFilter filter = MessageFilter.ALL;
+        try {
+            // Modules which don't override processMessage need commands only
+            if (getClass().getMethod("processMessage", Message.class)
+                    .getDeclaringClass() == Module.class) {
+                filter = MessageFilter.NONE;
+            }
+        } catch (NoSuchMethodException e) {
+            log.warn("Can't find processMessage method", e);
+        }
+        if (cfg.get("rooms") != null) {
+            filter = filter.rooms(cfg.get("rooms").split(";"));
+        }
+        messageFilter = filter;
     }
 
     public Module(Bot bot, Map<String, String> cfg,
@@ -50,6 +78,11 @@ public class Module {
                 config.put(entry.getKey(), entry.getValue());
             }
         }
+        // Default indexes are written in the SQLite dialect
+        if (!cfg.containsKey("create-indexes") && (config.get("db-url") == null
+                || !config.get("db-url").startsWith("jdbc:sqlite:"))) {
+            config.remove("create-indexes");
+        }
     }
 
     public Map<String, String> getConfig() {
@@ -67,6 +100,18 @@ public class Module {
     public void processCommand(Message msg) {
     }
 
+    /**
+     * Returns the filter of messages which should be passed to
+     * {@link #processMessage(Message)}. By default all messages from rooms
+     * listed in the "rooms" config property (or from all rooms) are passed;
+     * modules override it to describe messages they are interested in.
+     *
+     * @return the filter
+     */
+    public MessageFilter getMessageFilter() {
+        return messageFilter;
+    }
+
     public boolean processMessage(Message msg) {
         return false;
     }
@@ -77,4 +122,41 @@ public class Module {
 
     public void onUnload() {
     }
+
+    /**
+     * Acquires the pool of connections to the DB described by "db-driver",
+     * "db-url", "db-username", "db-password", "db-pool-size" and
+     * "db-pragmas" config properties. Modules must release the pool in
+     * {@link #onUnload()}.
+     *
+     * @return the pool
+     */
+    protected ConnectionPool acquireConnectionPool() {
+        String driverName = config.get("db-driver");
+        Driver driver = null;
+        try {
+            driver = (Driver) Class.forName(driverName, true,
+                    getClass().getClassLoader()).newInstance();
+        } catch (ClassNotFoundException | IllegalAccessException
+                | InstantiationException | ClassCastException e) {
+            log.warn("Can't initialize JDBC driver '%s': %s", driverName,
+                    e.getLocalizedMessage());
+        }
+        int size = 4;
+        if (config.get("db-pool-size") != null) {
+            try {
+                size = new Integer(config.get("db-pool-size"));
+            } catch (NumberFormatException e) {
+                log.warn("Invalid db-pool-size '%s'", config.get("db-pool-size"));
+            }
+        }
+        String pragmas = config.get("db-pragmas");
+        if (pragmas == null && config.get("db-url") != null
+                && config.get("db-url").startsWith("jdbc:sqlite:")) {
+            pragmas = SQLITE_PRAGMAS;
+        }
+        return ConnectionPool.acquire(driver, config.get("db-url"),
+                config.get("db-username"), config.get("db-password"), size,
+                pragmas == null ? null : pragmas.split(";"), log);
+    }
 }
@@ -0,0 +1,73 @@
+/*
+ *  JavaXMPPBot - XMPP(Jabber) bot written in Java
+ *  Copyright 2010 Mikhail Telnov <michael.telnov@gmail.com>
+ *
+ *  This file is part of JavaXMPPBot.
+ *
+ *  JavaXMPPBot is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JavaXMPPBot is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JavaXMPPBot.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  $Id$
+ *
+ */
+package com.devti.JavaXMPPBot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Passes non-command messages through loaded modules.
+ * <p>
+ * Modules are called in order of loading until one of them returns
+ * <code>true</code> from {@link Module#processMessage(Message)}. Modules
+ * whose {@link MessageFilter} doesn't pass a message are skipped, modules
+ * which process only commands aren't included at all. The pipeline is
+ * immutable and is rebuilt when the list of modules changes.
+ *
+ * @author Mikhail Telnov <michael.telnov@gmail.com>
+ */
+public class ModulePipeline {
+
+    private final Module[] modules;
+    private final MessageFilter[] filters;
+
+    ModulePipeline(List<Module> modules) {
+        List<Module> m = new ArrayList<>();
+        List<MessageFilter> f = new ArrayList<>();
+        for (Module module : modules) {
+            MessageFilter filter = module.getMessageFilter();
+            if (filter != null && !filter.isEmpty()) {
+                m.add(module);
+                f.add(filter);
+            }
+        }
+        this.modules = m.toArray(new Module[m.size()]);
+        this.filters = f.toArray(new MessageFilter[f.size()]);
+    }
+
+    /**
+     * Passes the message through the modules.
+     *
+     * @param message the message
+     * @return <code>true</code> if a module has stopped processing
+     */
+    public boolean process(Message message) {
+        for (int i = 0; i < modules.length; i++) {
+            if (filters[i].accepts(message)
+                    && modules[i].processMessage(message)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
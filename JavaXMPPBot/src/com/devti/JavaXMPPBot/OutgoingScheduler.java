@@ -0,0 +1,272 @@
+/*
+ *  JavaXMPPBot - XMPP(Jabber) bot written in Java
+ *  Copyright 2010 Mikhail Telnov <michael.telnov@gmail.com>
+ *
+ *  This file is part of JavaXMPPBot.
+ *
+ *  JavaXMPPBot is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JavaXMPPBot is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JavaXMPPBot.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  $Id$
+ *
+ */
+package com.devti.JavaXMPPBot;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.jivesoftware.smack.util.StringUtils;
+
+/**
+ * Queue of outgoing messages with rate limiting.
+ * <p>
+ * Every destination (a room or a bare JID) has its own token bucket, so a
+ * burst of replies to one room doesn't delay other rooms and private chats.
+ * A global token bucket limits the total rate. Priority messages (replies to
+ * commands and to owners) are sent before ordinary ones, consecutive messages
+ * to the same destination are joined into one message.
+ *
+ * @author Mikhail Telnov <michael.telnov@gmail.com>
+ */
+class OutgoingScheduler {
+
+    private static final int PURGE_THRESHOLD = 256;
+
+    private static class TokenBucket {
+
+        private double tokens;
+        private long updated;
+
+        public TokenBucket(int capacity, long now) {
+            tokens = capacity;
+            updated = now;
+        }
+
+        private void refill(int capacity, long interval, long now) {
+            if (interval <= 0) {
+                tokens = capacity;
+            } else {
+                tokens = Math.min(capacity,
+                        tokens + (double) (now - updated) / interval);
+            }
+            updated = now;
+        }
+
+        /**
+         * Returns time in nanoseconds until a token will be available.
+         */
+        public long getDelay(int capacity, long interval, long now) {
+            refill(capacity, interval, now);
+            if (tokens >= 1) {
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) * interval);
+        }
+
+        public boolean isFull(int capacity, long interval, long now) {
+            refill(capacity, interval, now);
+            return tokens >= capacity;
+        }
+
+        public void take() {
+            tokens -= 1;
+        }
+    }
+
+    private static class Destination {
+
+        private final TokenBucket bucket;
+        private final ArrayDeque<Message> priority;
+        private final ArrayDeque<Message> ordinary;
+
+        public Destination(TokenBucket bucket) {
+            this.bucket = bucket;
+            priority = new ArrayDeque<>();
+            ordinary = new ArrayDeque<>();
+        }
+
+        public boolean isEmpty() {
+            return priority.isEmpty() && ordinary.isEmpty();
+        }
+    }
+
+    private final Map<String, Destination> destinations;
+    private final ArrayDeque<Destination> active;
+    private final TokenBucket globalBucket;
+    private int burst;
+    private long interval;
+    private int globalBurst;
+    private long globalInterval;
+    private int coalesceLimit;
+    private int size;
+
+    public OutgoingScheduler() {
+        destinations = new HashMap<>();
+        active = new ArrayDeque<>();
+        burst = 3;
+        interval = TimeUnit.MILLISECONDS.toNanos(1000);
+        globalBurst = 5;
+        globalInterval = TimeUnit.MILLISECONDS.toNanos(250);
+        coalesceLimit = 2000;
+        globalBucket = new TokenBucket(globalBurst, System.nanoTime());
+    }
+
+    /**
+     * Changes rate limits.
+     *
+     * @param delay minimal delay in milliseconds between messages to the same
+     * destination
+     * @param burst number of messages which can be sent to the same
+     * destination without delay
+     * @param globalDelay minimal delay in milliseconds between any messages
+     * @param globalBurst number of messages which can be sent without delay
+     * @param coalesceLimit maximum length of a message joined from several
+     * messages, 0 disables joining
+     */
+    public synchronized void configure(int delay, int burst, int globalDelay,
+            int globalBurst, int coalesceLimit) {
+        this.interval = TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0));
+        this.burst = Math.max(burst, 1);
+        this.globalInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(globalDelay, 0));
+        this.globalBurst = Math.max(globalBurst, 1);
+        this.coalesceLimit = coalesceLimit;
+    }
+
+    /**
+     * Adds the message to the queue.
+     *
+     * @param message the message to send
+     * @param priority if <code>true</code> the message will be sent before
+     * ordinary messages
+     */
+    public synchronized void add(Message message, boolean priority) {
+        long now = System.nanoTime();
+        String key = (message.to == null) ? ""
+                : StringUtils.parseBareAddress(message.to).toLowerCase();
+        Destination destination = destinations.get(key);
+        if (destination == null) {
+            if (destinations.size() >= PURGE_THRESHOLD) {
+                purge(now);
+            }
+            destination = new Destination(new TokenBucket(burst, now));
+            destinations.put(key, destination);
+        }
+        if (destination.isEmpty()) {
+            active.add(destination);
+        }
+        ArrayDeque<Message> queue = priority ? destination.priority
+                : destination.ordinary;
+        Message last = queue.peekLast();
+        if (coalesceLimit > 0 && last != null && last.type == message.type
+                && String.valueOf(last.to).equals(String.valueOf(message.to))
+                && last.body.length() + 1 + message.body.length() <= coalesceLimit) {
+            last.body = last.body + "\n" + message.body;
+            return;
+        }
+        queue.add(message);
+        size++;
+    }
+
+    /**
+     * Retrieves and removes the next message which can be sent right now.
+     *
+     * @return the message or <code>null</code> if there are no messages ready
+     * to be sent
+     */
+    public synchronized Message poll() {
+        if (active.isEmpty()) {
+            return null;
+        }
+        long now = System.nanoTime();
+        if (globalBucket.getDelay(globalBurst, globalInterval, now) > 0) {
+            return null;
+        }
+        Destination destination = find(now, true);
+        if (destination == null) {
+            destination = find(now, false);
+        }
+        if (destination == null) {
+            return null;
+        }
+        Message message = destination.priority.poll();
+        if (message == null) {
+            message = destination.ordinary.poll();
+        }
+        size--;
+        destination.bucket.take();
+        globalBucket.take();
+        // Move the destination to the end of the round
+        active.remove(destination);
+        if (!destination.isEmpty()) {
+            active.add(destination);
+        }
+        return message;
+    }
+
+    private Destination find(long now, boolean priority) {
+        for (Destination destination : active) {
+            if ((priority ? destination.priority : destination.ordinary).isEmpty()) {
+                continue;
+            }
+            if (destination.bucket.getDelay(burst, interval, now) == 0) {
+                return destination;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns time in milliseconds until the next message can be sent.
+     *
+     * @return 0 if a message can be sent right now, -1 if the queue is empty
+     */
+    public synchronized long getDelay() {
+        if (active.isEmpty()) {
+            return -1;
+        }
+        long now = System.nanoTime();
+        long delay = Long.MAX_VALUE;
+        for (Destination destination : active) {
+            delay = Math.min(delay,
+                    destination.bucket.getDelay(burst, interval, now));
+        }
+        delay = Math.max(delay,
+                globalBucket.getDelay(globalBurst, globalInterval, now));
+        if (delay == 0) {
+            return 0;
+        }
+        return Math.max(TimeUnit.NANOSECONDS.toMillis(delay), 1);
+    }
+
+    /**
+     * Returns number of queued messages.
+     *
+     * @return number of queued messages
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private void purge(long now) {
+        Iterator<Destination> i = destinations.values().iterator();
+        while (i.hasNext()) {
+            Destination destination = i.next();
+            if (destination.isEmpty()
+                    && destination.bucket.isFull(burst, interval, now)) {
+                i.remove();
+            }
+        }
+    }
+}
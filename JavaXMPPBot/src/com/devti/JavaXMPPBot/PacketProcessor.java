@@ -23,68 +23,157 @@
 package com.devti.JavaXMPPBot;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.Set;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.packet.Packet;
-import javax.xml.parsers.DocumentBuilderFactory;
-import org.w3c.dom.Document;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.util.StringUtils;
+import org.w3c.dom.DOMException;
 import org.w3c.dom.Node;
-import java.io.StringReader;
-import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 public class PacketProcessor implements PacketListener {
 
     private final Bot bot;
+    private final MessageDispatcher dispatcher;
     private final Logger logger;
+    private volatile boolean domParser;
+    private DocumentBuilder documentBuilder;
 
-    public PacketProcessor(Bot bot) {
+    public PacketProcessor(Bot bot, MessageDispatcher dispatcher) {
         this.bot = bot;
+        this.dispatcher = dispatcher;
         this.logger = new Logger(bot.getLog(), "[PP] ");
+        domParser = false;
     }
 
-    @Override
-    public void processPacket(Packet packet) {
-        String raw = packet.toXML();
-        logger.debug("IN: " + raw);
+    /**
+     * Switches between reading messages directly from Smack packets (default)
+     * and parsing their XML representation with a DOM parser.
+     *
+     * @param enabled if <code>true</code> use DOM parser
+     */
+    public void setDOMParser(boolean enabled) {
+        domParser = enabled;
+    }
+
+    private Message createMessage(org.jivesoftware.smack.packet.Message packet) {
+        String body = packet.getBody();
+        Message message = new Message(packet.getFrom(), packet.getTo(),
+                (body == null) ? "" : body);
+        message.type = Message.Type.valueOf(packet.getType().name());
+        for (PacketExtension extension : packet.getExtensions()) {
+            if (message.extensions.isEmpty()) {
+                message.extensions = new HashSet<>();
+            }
+            message.extensions.add(extension.getNamespace());
+        }
+        return message;
+    }
+
+    private synchronized Message parseMessage(String raw) {
         Node node;
         try {
-            Document document = DocumentBuilderFactory.
-                    newInstance().newDocumentBuilder().
-                    parse(new InputSource(new StringReader(raw)));
-            node = document.getFirstChild();
+            if (documentBuilder == null) {
+                documentBuilder = DocumentBuilderFactory.newInstance().
+                        newDocumentBuilder();
+            }
+            node = documentBuilder.parse(new InputSource(
+                    new StringReader(raw))).getFirstChild();
         } catch (ParserConfigurationException | SAXException | IOException e) {
             logger.warn("Can't parse a message", e);
-            return;
+            return null;
         }
 
+        // Extract fields from the message
+        String from, to, type;
+        String body = "";
+        Set<String> extensions = new HashSet<>();
+        try {
+            from = node.getAttributes().getNamedItem("from").getTextContent();
+            to = node.getAttributes().getNamedItem("to").getTextContent();
+            if (node.getAttributes().getNamedItem("type") == null) {
+                type = "normal";
+            } else {
+                type = node.getAttributes().getNamedItem("type").getTextContent();
+            }
+            NodeList nl = node.getChildNodes();
+            for (int i = 0; i < nl.getLength(); i++) {
+                Node xmlns = (nl.item(i).getAttributes() == null) ? null
+                        : nl.item(i).getAttributes().getNamedItem("xmlns");
+                if (xmlns != null) {
+                    extensions.add(xmlns.getTextContent());
+                } else if (nl.item(i).getNodeName().equals("body")
+                        && body.isEmpty()) {
+                    body = nl.item(i).getTextContent();
+                }
+            }
+        } catch (DOMException e) {
+            logger.warn("An error occurred during process a message", e);
+            return null;
+        }
+        Message message = new Message(from, to, body);
+        message.type = Message.Type.valueOf(type);
+        message.extensions = extensions;
+        return message;
+    }
+
+    @Override
+    public void processPacket(final Packet packet) {
+        logger.debug(new Logger.MessageSupplier() {
+            @Override
+            public String get() {
+                return "IN: " + packet.toXML();
+            }
+        });
+
         // Process if this is a chat message
-        if (node.getNodeName().equalsIgnoreCase("message")) {
-            MessageProcessor mp = new MessageProcessor(bot, node);
-            mp.start();
+        if (packet instanceof org.jivesoftware.smack.packet.Message) {
+            Message message;
+            if (domParser) {
+                message = parseMessage(packet.toXML());
+            } else {
+                message = createMessage(
+                        (org.jivesoftware.smack.packet.Message) packet);
+            }
+            if (message == null) {
+                return;
+            }
+            String key = (message.from == null) ? ""
+                    : StringUtils.parseBareAddress(message.from);
+            if (!dispatcher.dispatch(key,
+                    message.type == Message.Type.groupchat,
+                    new MessageProcessor(bot, message))) {
+                logger.warn("Message queue is full, message from %s has been "
+                        + "rejected", message.from);
+            }
             return;
         }
 
         // Rejoin to rooms if needed
-        if (node.getNodeName().equalsIgnoreCase("presence")
-                && (node.getAttributes().getNamedItem("type") != null)
-                && node.getAttributes().getNamedItem("type").
-                getTextContent().equalsIgnoreCase("unavailable")) {
-            String from = node.getAttributes().getNamedItem("from").
-                    getTextContent();
-            String[] rooms = bot.getRooms();
-            for (String room : rooms) {
-                if (!from.equalsIgnoreCase(room + "/" + bot.getResource())) {
-                    continue;
-                }
-                bot.leaveRoom(room);
+        if ((packet instanceof Presence)
+                && ((Presence) packet).getType() == Presence.Type.unavailable
+                && packet.getFrom() != null) {
+            String from = packet.getFrom();
+            Room room = bot.getRoom(StringUtils.parseBareAddress(from));
+            if (room != null && from.equalsIgnoreCase(
+                    room.getRoom() + "/" + bot.getResource())) {
+                String name = room.getRoom();
+                bot.leaveRoom(name);
                 try {
                     Thread.sleep(1000);
                 } catch (InterruptedException e) {
                     logger.warn("Sleep has been interrupted", e);
                 }
-                bot.joinRoom(room);
-                return;
+                bot.joinRoom(name);
             }
         }
     }
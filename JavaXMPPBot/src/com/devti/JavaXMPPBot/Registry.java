@@ -0,0 +1,123 @@
+/*
+ *  JavaXMPPBot - XMPP(Jabber) bot written in Java
+ *  Copyright 2010 Mikhail Telnov <michael.telnov@gmail.com>
+ *
+ *  This file is part of JavaXMPPBot.
+ *
+ *  JavaXMPPBot is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JavaXMPPBot is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JavaXMPPBot.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  $Id$
+ *
+ */
+package com.devti.JavaXMPPBot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collection of named objects with case-insensitive lookup.
+ * <p>
+ * Objects are kept in order of addition. Every change builds a new snapshot,
+ * so lookups and iterations don't take any locks and never see a collection
+ * being changed.
+ *
+ * @param <T> type of objects
+ * @author Mikhail Telnov <michael.telnov@gmail.com>
+ */
+class Registry<T> {
+
+    private static class Snapshot<T> {
+
+        private final Map<String, T> index;
+        private final List<T> values;
+
+        public Snapshot(LinkedHashMap<String, T> items) {
+            index = new HashMap<>(items);
+            values = Collections.unmodifiableList(new ArrayList<>(items.values()));
+        }
+    }
+
+    private final LinkedHashMap<String, T> items;
+    private volatile Snapshot<T> snapshot;
+
+    public Registry() {
+        items = new LinkedHashMap<>();
+        snapshot = new Snapshot<>(items);
+    }
+
+    private static String normalize(String name) {
+        return name.toLowerCase();
+    }
+
+    /**
+     * Adds the object, an object with the same name is replaced.
+     *
+     * @param name name of the object
+     * @param item the object
+     */
+    public synchronized void put(String name, T item) {
+        items.put(normalize(name), item);
+        snapshot = new Snapshot<>(items);
+    }
+
+    /**
+     * Removes the object.
+     *
+     * @param name name of the object
+     * @return removed object or <code>null</code> if there was no object with
+     * such name
+     */
+    public synchronized T remove(String name) {
+        T item = items.remove(normalize(name));
+        if (item != null) {
+            snapshot = new Snapshot<>(items);
+        }
+        return item;
+    }
+
+    /**
+     * Removes all objects.
+     */
+    public synchronized void clear() {
+        items.clear();
+        snapshot = new Snapshot<>(items);
+    }
+
+    /**
+     * Returns the object specified by its name.
+     *
+     * @param name name of the object (case-insensitive)
+     * @return the object or <code>null</code> if it isn't found
+     */
+    public T get(String name) {
+        if (name == null) {
+            return null;
+        }
+        return snapshot.index.get(normalize(name));
+    }
+
+    /**
+     * Returns all objects in order of addition. The returned list doesn't
+     * change when the registry does.
+     *
+     * @return unmodifiable list of objects
+     */
+    public List<T> values() {
+        return snapshot.values;
+    }
+}
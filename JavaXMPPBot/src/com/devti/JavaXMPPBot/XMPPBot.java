@@ -28,8 +28,6 @@ import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
@@ -98,18 +96,25 @@ public final class XMPPBot extends Thread implements Bot {
     private int connectionInterval;
     private int silenceTime;
     private int sendDelay;
+    private int sendBurst;
+    private int sendGlobalDelay;
+    private int sendGlobalBurst;
+    private int sendCoalesceLimit;
     private boolean enabled;
     private Properties properties;
     private final Path configFile;
     private final XMPPConnection connection;
     private final ConnectionConfiguration connectionConfiguration;
-    private final List<Module> modules;
-    private final Map<String, Command> commands;
-    private final List<Room> rooms;
+    private final Registry<Module> modules;
+    private volatile ModulePipeline modulePipeline;
+    private final CommandRouter commandRouter;
+    private final Registry<Room> rooms;
     private String[] owners;
     private String[] autojoinRooms;
-    private final List<String> ignoreList;
-    private final List<Message> outgoingMessageQueue;
+    private final IgnoreList ignoreList;
+    private final OutgoingScheduler outgoingScheduler;
+    private final MessageDispatcher dispatcher;
+    private final PacketProcessor packetProcessor;
     private boolean roomsShouldBeReconnected;
 
     /**
@@ -127,14 +132,17 @@ public final class XMPPBot extends Thread implements Bot {
         this.configFile = configFile;
         this.log = log;
         logger = new Logger(this.log, "[MAIN] ");
-        modules = new ArrayList<>();
-        commands = Collections.synchronizedMap(new HashMap<String, Command>());
-        rooms = new ArrayList<>();
+        modules = new Registry<>();
+        modulePipeline = new ModulePipeline(modules.values());
+        commandRouter = new CommandRouter();
+        rooms = new Registry<>();
         properties = new Properties();
-        ignoreList = new ArrayList<>();
+        ignoreList = new IgnoreList(logger);
+        outgoingScheduler = new OutgoingScheduler();
+        dispatcher = new MessageDispatcher(this);
+        packetProcessor = new PacketProcessor(this, dispatcher);
         reloadConfig();
         logger.info("Starting bot with config " + configFile);
-        outgoingMessageQueue = new ArrayList<>();
         connectionConfiguration = new ConnectionConfiguration(properties.getProperty("server"),
                 new Integer(properties.getProperty("port")),
                 new ProxyInfo(ProxyType.valueOf(properties.getProperty("proxy.type")),
@@ -193,6 +201,25 @@ public final class XMPPBot extends Thread implements Bot {
         connectionInterval = new Integer(newProperties.getProperty("connection-interval", "5"));
         silenceTime = new Integer(newProperties.getProperty("silence-time", "3"));
         sendDelay = new Integer(newProperties.getProperty("send-delay", "1000"));
+        sendBurst = new Integer(newProperties.getProperty("send-burst", "3"));
+        sendGlobalDelay = new Integer(newProperties.getProperty("send-global-delay", "250"));
+        sendGlobalBurst = new Integer(newProperties.getProperty("send-global-burst", "5"));
+        sendCoalesceLimit = new Integer(newProperties.getProperty("send-coalesce-limit", "2000"));
+        int dispatcherThreads = new Integer(newProperties.getProperty("dispatcher.threads", "4"));
+        int dispatcherQueueSize = new Integer(newProperties.getProperty("dispatcher.queue-size", "500"));
+        MessageDispatcher.OverloadPolicy overloadPolicy =
+                MessageDispatcher.OverloadPolicy.valueOf(newProperties.getProperty(
+                        "dispatcher.overload-policy", "drop-oldest-groupchat").
+                        trim().toUpperCase().replace('-', '_'));
+        Logger.Level logLevel = Logger.Level.valueOf(newProperties.getProperty(
+                "log-level", "info").trim().toUpperCase());
+        long logSizeLimit = new Long(newProperties.getProperty("log.size-limit", "10485760"));
+        int logRotateCount = new Integer(newProperties.getProperty("log.rotate-count", "10"));
+        int logRotateInterval = new Integer(newProperties.getProperty("log.rotate-interval", "0"));
+        int logFlushInterval = new Integer(newProperties.getProperty("log.flush-interval", "1000"));
+        Log.OverflowPolicy logOverflowPolicy = Log.OverflowPolicy.valueOf(
+                newProperties.getProperty("log.overflow-policy", "block").
+                        trim().toUpperCase());
 
         // Set default values for undefined newProperties
         if (newProperties.getProperty("port") == null) {
@@ -246,16 +273,35 @@ public final class XMPPBot extends Thread implements Bot {
         } else {
             autojoinRooms = new String[0];
         }
-        if (newProperties.getProperty("ignore") != null) {
-            ignoreList.addAll(Arrays.asList(newProperties.getProperty("ignore").split(";")));
+        ignoreList.load(newProperties.getProperty("ignore", "").split(";"));
+
+        log.setLevel(logLevel);
+        log.setFlushInterval(logFlushInterval);
+        log.setRotation(logSizeLimit, logRotateCount, logRotateInterval);
+        log.setOverflowPolicy(logOverflowPolicy);
+        dispatcher.configure(dispatcherThreads, dispatcherQueueSize,
+                overloadPolicy);
+        outgoingScheduler.configure(sendDelay, sendBurst, sendGlobalDelay,
+                sendGlobalBurst, sendCoalesceLimit);
+        packetProcessor.setDOMParser(newProperties.getProperty("packet-parser",
+                "direct").equalsIgnoreCase("dom"));
+
+        // Load command aliases
+        Map<String, String> aliases = new HashMap<>();
+        for (String alias : newProperties.getProperty("command-aliases", "").split(";")) {
+            int i = alias.indexOf('=');
+            if (i > 0) {
+                aliases.put(alias.substring(0, i).trim(), alias.substring(i + 1).trim());
+            }
         }
 
         // Unload modules
-        commands.clear();
-        for (int i = 0; i < modules.size(); i++) {
-            modules.get(i).onUnload();
+        commandRouter.reset(aliases);
+        for (Module module : modules.values()) {
+            module.onUnload();
         }
         modules.clear();
+        modulePipeline = new ModulePipeline(modules.values());
 
         // New configFile is OK, load it
         properties = newProperties;
@@ -297,7 +343,9 @@ public final class XMPPBot extends Thread implements Bot {
                                 properties.getProperty(key));
                     }
                 }
-                modules.add((Module) constructor.newInstance(this, cfg));
+                Module module = (Module) constructor.newInstance(this, cfg);
+                modules.put(module.getClass().getSimpleName(), module);
+                modulePipeline = new ModulePipeline(modules.values());
                 logger.info("Module %s has been loaded.", m);
             }
         }
@@ -366,7 +414,7 @@ public final class XMPPBot extends Thread implements Bot {
         connection.addConnectionListener(new ConnectionListener(this));
         logger.info("OK! connection listener is set");
         logger.info("Set message listener");
-        connection.addPacketListener(new PacketProcessor(this), null);
+        connection.addPacketListener(packetProcessor, null);
         logger.info("OK! message listener is set");
         for (String autojoinRoom : autojoinRooms) {
             joinRoom(autojoinRoom);
@@ -382,6 +430,7 @@ public final class XMPPBot extends Thread implements Bot {
             if (connection.isConnected()) {
                 rooms.clear();
                 connection.disconnect();
+                dispatcher.shutdown();
                 enabled = false;
                 synchronized (this) {
                     notifyAll();
@@ -397,19 +446,16 @@ public final class XMPPBot extends Thread implements Bot {
     public void joinRoom(String room) {
         for (int i = 0; i < connectionRetries; i++) {
             try {
-                ignoreList.add(room + "/.*");
+                // Skip the history which the room sends after joining
+                ignoreList.silence(room, silenceTime * 1000L);
                 Room muc = new Room(connection, room);
                 muc.join(properties.getProperty("rooms." + room + ".nick",
                         properties.getProperty("nick")),
                         properties.getProperty("rooms." + room + ".password"));
-                rooms.add(muc);
+                rooms.put(room, muc);
                 logger.info("OK! Joined to room " + room);
-                try {
-                    Thread.sleep(silenceTime * 1000);
-                } catch (InterruptedException e) {
-                    logger.warn("Sleep has been interrupted", e);
-                }
-                ignoreList.remove(room + "/.*");
+                // Count silence time from the moment of joining
+                ignoreList.silence(room, silenceTime * 1000L);
                 break;
             } catch (XMPPException e) {
                 logger.warn("Can't joint to room", e);
@@ -424,12 +470,10 @@ public final class XMPPBot extends Thread implements Bot {
 
     @Override
     public void leaveRoom(String room) {
-        for (int i = 0; i < rooms.size(); i++) {
-            if (rooms.get(i).getRoom().equals(room)) {
-                rooms.get(i).leave();
-                rooms.remove(i);
-                logger.info("OK! I have left chat-room " + room);
-            }
+        Room muc = rooms.remove(room);
+        if (muc != null) {
+            muc.leave();
+            logger.info("OK! I have left chat-room " + room);
         }
     }
 
@@ -443,30 +487,38 @@ public final class XMPPBot extends Thread implements Bot {
 
     @Override
     public String[] getRooms() {
-        String[] result = new String[rooms.size()];
-        for (int i = 0; i < rooms.size(); i++) {
-            result[i] = rooms.get(i).getRoom();
+        List<Room> list = rooms.values();
+        String[] result = new String[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(i).getRoom();
         }
         return result;
     }
 
     @Override
     public Room getRoom(String room) {
-        for (int i = 0; i < rooms.size(); i++) {
-            if (rooms.get(i).getRoom().equals(room)) {
-                return rooms.get(i);
-            }
-        }
-        return null;
+        return rooms.get(room);
+    }
+
+    @Override
+    public MessageDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    @Override
+    public CommandRouter getCommandRouter() {
+        return commandRouter;
+    }
+
+    @Override
+    public ModulePipeline getModulePipeline() {
+        return modulePipeline;
     }
 
     @Override
     public Command[] getCommands(boolean owner) {
         List<Command> cmds = new ArrayList<>();
-        List<String> names = new ArrayList<>(commands.keySet());
-        Collections.sort(names);
-        for (String name : names) {
-            Command command = commands.get(name);
+        for (Command command : commandRouter.getCommands()) {
             if (owner || !command.ownerOnly) {
                 cmds.add(command);
             }
@@ -476,32 +528,18 @@ public final class XMPPBot extends Thread implements Bot {
 
     @Override
     public void registerCommand(Command command) throws Exception {
-        synchronized (commands) {
-            if (commands.containsKey(command.command)) {
-                throw new Exception("Command '" + command.command +
-                        "' is registred already for module '" +
-                        command.module.getClass().getName() + "'.");
-            } else {
-                commands.put(command.command, command);
-            }
-        }
+        commandRouter.register(command);
     }
 
     @Override
     public Command getCommand(String command) {
-        synchronized (commands) {
-            return commands.get(command);
-        }
+        return commandRouter.get(command);
     }
 
     @Override
     public String getNickname(String room) {
-        for (int i = 0; i < rooms.size(); i++) {
-            if (rooms.get(i).getRoom().equals(room)) {
-                return rooms.get(i).getNickname();
-            }
-        }
-        return null;
+        Room muc = rooms.get(room);
+        return (muc == null) ? null : muc.getNickname();
     }
 
     @Override
@@ -527,19 +565,15 @@ public final class XMPPBot extends Thread implements Bot {
 
     @Override
     public Module getModule(String name) {
-        for (int i = 0; i < modules.size(); i++) {
-            if (modules.get(i).getClass().getSimpleName().equalsIgnoreCase(name)) {
-                return (modules.get(i));
-            }
-        }
-        return null;
+        return modules.get(name);
     }
 
     @Override
     public String[] getModules() {
-        String[] ma = new String[modules.size()];
-        for (int i = 0; i < modules.size(); i++) {
-            ma[i] = modules.get(i).getClass().getSimpleName();
+        List<Module> list = modules.values();
+        String[] ma = new String[list.size()];
+        for (int i = 0; i < ma.length; i++) {
+            ma[i] = list.get(i).getClass().getSimpleName();
         }
         return ma;
     }
@@ -557,18 +591,10 @@ public final class XMPPBot extends Thread implements Bot {
 
     @Override
     public boolean isIgnored(String jid) {
-        if (jid != null) {
-            for (int i = 0; i < ignoreList.size(); i++) {
-                if (jid.matches(ignoreList.get(i))) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return ignoreList.contains(jid);
     }
 
-    @Override
-    public void sendMessage(Message message) {
+    private void deliver(Message message) {
         if (connection != null) {
             org.jivesoftware.smack.packet.Message newMessage =
                     new org.jivesoftware.smack.packet.Message(message.to,
@@ -578,6 +604,20 @@ public final class XMPPBot extends Thread implements Bot {
         }
     }
 
+    private void enqueue(Message message, boolean priority) {
+        outgoingScheduler.add(message, priority);
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void sendMessage(Message message) {
+        Message copy = new Message(message.from, message.to, message.body);
+        copy.type = message.type;
+        enqueue(copy, false);
+    }
+
     @Override
     public void sendReply(Message originalMessage, String reply) {
         if ((originalMessage.type == Message.Type.normal) ||
@@ -595,35 +635,16 @@ public final class XMPPBot extends Thread implements Bot {
             Message message = new Message(originalMessage.to, to,
                     bodyPrefix + reply);
             message.type = originalMessage.type;
-            synchronized (outgoingMessageQueue) {
-                outgoingMessageQueue.add(message);
-            }
-            synchronized (this) {
-                notifyAll();
-            }
+            // Replies to commands and to owners go first
+            enqueue(message, (originalMessage.command != null)
+                    || ((originalMessage.fromJID != null)
+                    && isOwner(originalMessage.fromJID)));
         } else {
             logger.warn("Can't send reply on message with type "
                     + originalMessage.type.toString());
         }
     }
 
-    private void processOugoingMessageQueue() {
-        Message[] messages;
-        synchronized (outgoingMessageQueue) {
-            messages = new Message[outgoingMessageQueue.size()];
-            messages = outgoingMessageQueue.toArray(messages);
-            outgoingMessageQueue.clear();
-        }
-        for (Message message : messages) {
-            sendMessage(message);
-            try {
-                Thread.sleep(sendDelay);
-            } catch (InterruptedException e) {
-                logger.warn("Sleep has been interrupted", e);
-            }
-        }
-    }
-
     @Override
     public void run() {
         while (enabled) {
@@ -645,18 +666,26 @@ public final class XMPPBot extends Thread implements Bot {
             }
 
             // Send messages from outgoing queue
-            while (outgoingMessageQueue.size() > 0) {
-                processOugoingMessageQueue();
+            Message message;
+            while ((message = outgoingScheduler.poll()) != null) {
+                deliver(message);
             }
 
             try {
                 synchronized (this) {
-                    wait();
+                    long delay = outgoingScheduler.getDelay();
+                    if (delay < 0) {
+                        wait();
+                    } else if (delay > 0) {
+                        wait(delay);
+                    }
                 }
             } catch (InterruptedException e) {
                 logger.warn("Waiting has been interrupted", e);
             }
 
         }
+        // Let the log writer finish, so the process can exit
+        log.close();
     }
 }